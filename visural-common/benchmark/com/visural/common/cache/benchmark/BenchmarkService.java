@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.benchmark;
+
+import com.google.inject.Inject;
+import com.visural.common.cache.Cache;
+import com.visural.common.cache.CacheData;
+import com.visural.common.cache.Cacheable;
+import com.visural.common.cache.EvictionStrategy;
+
+/**
+ * Cached methods exercised by the benchmarks. Each returns its argument, so
+ * that the measured cost is the cache's rather than the method's.
+ *
+ * @author Richard Nichols
+ */
+public class BenchmarkService implements Cacheable {
+
+    public static final int MAX_ENTRIES = 1024;
+    
+    private final CacheData data;
+
+    @Inject
+    protected BenchmarkService(CacheData data) {
+        this.data = data;
+    }
+
+    public CacheData __cacheData() {
+        return data;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES)
+    public Integer hard(Integer arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES, softValues = true)
+    public Integer soft(Integer arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES, evictionStrategy = EvictionStrategy.LRU)
+    public Integer lru(Integer arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES, evictionStrategy = EvictionStrategy.FIFO)
+    public Integer fifo(Integer arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES, evictionStrategy = EvictionStrategy.LFU)
+    public Integer lfu(Integer arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES, evictionStrategy = EvictionStrategy.LFU_TIMECOST)
+    public Integer lfuTimeCost(Integer arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES, evictionStrategy = EvictionStrategy.W_TINYLFU)
+    public Integer tinyLfu(Integer arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries = MAX_ENTRIES, evictionStrategy = EvictionStrategy.ARC)
+    public Integer arc(Integer arg) {
+        return arg;
+    }
+
+    /**
+     * Calls the method cached with the given strategy.
+     */
+    public Integer call(EvictionStrategy strategy, Integer arg) {
+        switch (strategy) {
+            case LRU:
+                return lru(arg);
+            case FIFO:
+                return fifo(arg);
+            case LFU:
+                return lfu(arg);
+            case LFU_TIMECOST:
+                return lfuTimeCost(arg);
+            case W_TINYLFU:
+                return tinyLfu(arg);
+            case ARC:
+                return arc(arg);
+            default:
+                throw new IllegalArgumentException("Unknown strategy "+strategy);
+        }
+    }
+}
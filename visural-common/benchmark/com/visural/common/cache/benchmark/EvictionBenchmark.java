@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.benchmark;
+
+import com.google.inject.Guice;
+import com.visural.common.cache.CacheModule;
+import com.visural.common.cache.EvictionStrategy;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of each {@link EvictionStrategy} under a skewed workload, with
+ * 1, 4 and 16 threads sharing the cache. The keys are drawn from a range four
+ * times the size of the cache, so there is a mix of hits, loads and evictions.
+ *
+ * @author Richard Nichols
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EvictionBenchmark {
+
+    private static final int KEY_RANGE = BenchmarkService.MAX_ENTRIES * 4;
+    private static final int SEQUENCE_LENGTH = 1 << 16;
+    
+    @Param({"LRU", "FIFO", "LFU", "LFU_TIMECOST", "W_TINYLFU", "ARC"})
+    public EvictionStrategy strategy;
+    
+    private BenchmarkService service;
+
+    @Setup
+    public void setup() {
+        service = Guice.createInjector(new CacheModule()).getInstance(BenchmarkService.class);
+    }
+
+    /**
+     * Each thread walks its own sequence of keys.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private final Integer[] sequence = new Integer[SEQUENCE_LENGTH];
+        private int next = 0;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(Thread.currentThread().getId());
+            for (int n = 0; n < SEQUENCE_LENGTH; n++) {
+                // log-uniform, approximately Zipf distributed
+                sequence[n] = Integer.valueOf((int) Math.pow(KEY_RANGE, random.nextDouble()) - 1);
+            }
+        }
+
+        Integer next() {
+            next = (next + 1) & (SEQUENCE_LENGTH - 1);
+            return sequence[next];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer threads1(Keys keys) {
+        return service.call(strategy, keys.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Integer threads4(Keys keys) {
+        return service.call(strategy, keys.next());
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Integer threads16(Keys keys) {
+        return service.call(strategy, keys.next());
+    }
+}
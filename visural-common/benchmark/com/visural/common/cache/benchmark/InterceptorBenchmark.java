@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.benchmark;
+
+import com.google.inject.Guice;
+import com.visural.common.cache.CacheModule;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of a call through the {@link com.visural.common.cache.impl.CacheInterceptor}
+ * when the result is cached, and when it must be loaded (which also evicts 
+ * an entry once the cache is full).
+ *
+ * @author Richard Nichols
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InterceptorBenchmark {
+
+    private BenchmarkService service;
+    private Integer[] keys;
+    private int next = 0;
+    private int miss = Integer.MIN_VALUE;
+
+    @Setup
+    public void setup() {
+        service = Guice.createInjector(new CacheModule()).getInstance(BenchmarkService.class);
+        keys = new Integer[BenchmarkService.MAX_ENTRIES / 2];
+        for (int n = 0; n < keys.length; n++) {
+            keys[n] = Integer.valueOf(n);
+            service.hard(keys[n]);
+        }
+    }
+
+    @Benchmark
+    public Integer hit() {
+        next = (next + 1) % keys.length;
+        return service.hard(keys[next]);
+    }
+
+    @Benchmark
+    public Integer miss() {
+        // never repeats within a run, and outside the range of the hit keys
+        return service.hard(Integer.valueOf(miss++));
+    }
+
+    @Benchmark
+    public Integer uncached() {
+        return keys[next = (next + 1) % keys.length];
+    }
+}
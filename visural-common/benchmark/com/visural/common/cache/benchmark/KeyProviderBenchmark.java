@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.benchmark;
+
+import com.visural.common.cache.KeyProvider;
+import com.visural.common.cache.MethodCall;
+import com.visural.common.cache.ObjectKeyProvider;
+import com.visural.common.cache.impl.CompositeKeyProvider;
+import com.visural.common.cache.impl.StandardKeyProvider;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of generating a cache key for typical method arguments.
+ *
+ * @author Richard Nichols
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyProviderBenchmark {
+
+    @Param({"standard", "composite"})
+    public String provider;
+    
+    private KeyProvider keyProvider;
+    private MethodCall primitives;
+    private MethodCall objects;
+
+    @Setup
+    public void setup() throws Exception {
+        keyProvider = "standard".equals(provider) ? new StandardKeyProvider() : new CompositeKeyProvider();
+        primitives = new MethodCall(Arguments.class.getMethod("primitives", int.class, long.class, String.class), 
+                new Object[] {42, 1234567890123L, "customer-0042"});
+        objects = new MethodCall(Arguments.class.getMethod("objects", List.class, int[].class), 
+                new Object[] {Arrays.asList("a", "b", "c", "d"), new int[] {1, 2, 3, 4, 5, 6, 7, 8}});
+    }
+
+    @Benchmark
+    public Object primitives() {
+        return key(primitives);
+    }
+
+    @Benchmark
+    public Object objects() {
+        return key(objects);
+    }
+
+    private Object key(MethodCall call) {
+        return keyProvider instanceof ObjectKeyProvider ? ((ObjectKeyProvider) keyProvider).getKeyObject(call) : keyProvider.getKey(call);
+    }
+
+    /**
+     * Signatures for the method calls.
+     */
+    public interface Arguments {
+        Object primitives(int id, long version, String name);
+        Object objects(List<String> names, int[] values);
+    }
+}
@@ -16,6 +16,8 @@
  */
 package com.visural.common.cache;
 
+import com.visural.common.cache.impl.ObjectSizeWeigher;
+import com.visural.common.cache.impl.ParameterTagProvider;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -24,6 +26,11 @@ import java.lang.annotation.Target;
 /**
  * Annotation to tag a method that should cache its results.
  * 
+ * Methods returning a {@link java.util.concurrent.Future} cache the Future 
+ * itself as soon as it is returned, so concurrent callers share the same 
+ * in-flight computation. A Future which fails or is cancelled is removed, and
+ * the time cost of the entry is measured to completion.
+ * 
  * @version $Id: Cache.java 38 2010-05-24 11:39:51Z tibes80@gmail.com $
  * @author Richard Nichols
  */
@@ -38,6 +45,28 @@ public @interface Cache {
      */
     int timeToLive() default 0;
 
+    /**
+     * Exceptions to cache, e.g. a "not found" exception for a lookup. A hit 
+     * on a cached exception throws the same exception instance again. By 
+     * default exceptions are not cached.
+     * @return 
+     */
+    Class<? extends Throwable>[] cacheExceptions() default {};
+
+    /**
+     * Time to live in milliseconds of cached exceptions (see `cacheExceptions`).
+     * -1 (default) uses `timeToLive`, 0 means they never expire.
+     * @return 
+     */
+    int exceptionTimeToLive() default -1;
+
+    /**
+     * Time to live in milliseconds of cached null results. -1 (default) uses
+     * `timeToLive`, 0 means they never expire.
+     * @return 
+     */
+    int nullTimeToLive() default -1;
+
     /**
      * Maximum number of results to cache. Must be > 0.
      * If you want to disable caching then remove the {@link CacheModule} or 
@@ -48,6 +77,29 @@ public @interface Cache {
      */
     int maxEntries() default 1000;
 
+    /**
+     * Maximum total weight of the cached results, as calculated by the 
+     * {@link #weigher()}. 0 (default) means the cache is bounded only by
+     * `maxEntries`. When set, entries are evicted until both bounds are met.
+     * @return 
+     */
+    long maxWeight() default 0;
+
+    /**
+     * The {@link Weigher} used with `maxWeight`. The default weighs results
+     * by their estimated size in bytes.
+     * @return 
+     */
+    Class<? extends Weigher> weigher() default ObjectSizeWeigher.class;
+
+    /**
+     * The {@link TagProvider} which tags cached results, for invalidation 
+     * with {@link CacheData#invalidateByTag(String)}. The default tags 
+     * results with the arguments of parameters annotated with {@link CacheTag}.
+     * @return 
+     */
+    Class<? extends TagProvider> tagProvider() default ParameterTagProvider.class;
+
     /**
      * Set eviction strategy for cache. See {@link EvictionStrategy}
      */
@@ -60,6 +112,27 @@ public @interface Cache {
      * @return 
      */
     boolean softValues() default false;
+
+    /**
+     * Store results serialized outside the Java heap, in direct byte buffers,
+     * so that large caches don't add to garbage collection work. Only the
+     * entry and a small handle remain on heap. Results are deserialized on
+     * every hit, so callers each get their own copy. Results which are not
+     * {@link java.io.Serializable} are kept on heap. May not be combined with
+     * `softValues`.
+     * @return 
+     */
+    boolean offHeap() default false;
+
+    /**
+     * Write entries evicted from memory to a memory mapped file, and check
+     * the file on a miss before calling the method. Gives a much larger 
+     * capacity for results which are expensive to compute but cheap to 
+     * deserialize. Only {@link java.io.Serializable} results are written. The
+     * directory and maximum size of the files are set by {@link CacheModule}.
+     * @return 
+     */
+    boolean overflowToDisk() default false;
     
     /**
      * Default is that caches relate only to the local object instance (i.e. use
@@ -68,5 +141,47 @@ public @interface Cache {
      * @return
      */
     boolean singletonCache() default false;
+
+    /**
+     * When true, concurrent callers which miss on the same arguments do not
+     * all execute the method. The first caller computes the result and the
+     * others wait for it and share it (or the exception it throws).
+     * Useful to avoid a thundering herd on expensive methods when a popular
+     * entry expires.
+     * @return 
+     */
+    boolean coalesceLoads() default false;
+
+    /**
+     * Time in milliseconds after which a cached result is refreshed ahead of 
+     * its expiry. 0 (default) disables refresh-ahead.
+     * A hit on an entry older than this returns the cached result immediately
+     * and reloads it in the background on the executor provided by 
+     * {@link CacheModule}, so callers don't pay for the load when the entry
+     * expires. Must be less than `timeToLive` when a `timeToLive` is set.
+     * @return 
+     */
+    int refreshAfter() default 0;
+
+    /**
+     * Time in milliseconds after the last read or write of a cached result 
+     * at which it expires. 0 (default) means results don't expire when idle.
+     * Entries which are in use live on, idle ones are removed in the 
+     * background, and combined with `timeToLive` whichever comes first 
+     * applies. The access time is recorded coarsely, so idle entries may 
+     * expire up to 1/16 of this late. Results on disk (see `overflowToDisk`)
+     * only expire by `timeToLive`, and are fresh again once read back.
+     * @return 
+     */
+    int expireAfterAccess() default 0;
+
+    /**
+     * Number of the most requested keys, and of the keys with the highest
+     * total load time, to report in the cache statistics. 0 (default) 
+     * disables tracking. Tracking uses a small, fixed amount of memory per 
+     * method and counts decay over time, so the report favours recent traffic.
+     * @return 
+     */
+    int hotKeys() default 0;
         
 }
@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Caches a method which looks up a collection of keys, such as 
+ * `Map<Long, User> getUsers(@CacheBulk List<Long> ids)`, per element rather
+ * than per collection, so that overlapping requests share entries.
+ * 
+ * Elements which are cached are served from the cache and the method is 
+ * called once, with a collection of only the missing elements, after which
+ * each of their results is cached separately. The method must return a 
+ * `Map` from element to result, and the parameter must be a `Collection`
+ * which accepts an `ArrayList`, `LinkedHashSet` or `TreeSet` (e.g. `List`, 
+ * `Set` or `SortedSet`), which it is passed in that order of preference. 
+ * The caller's collection is never modified.
+ * 
+ * Each element is cached as a call with a singleton list in place of the
+ * collection, e.g. `getUsers([42])`, which is also the `MethodCall` to
+ * invalidate it with. Elements missing from the returned map are cached as
+ * null results (see {@link Cache#nullTimeToLive()}) and left out of the 
+ * map returned to callers, as are null values. Exceptions are not cached, 
+ * and `refreshAfter` and `coalesceLoads` are not supported.
+ * 
+ * @author Richard Nichols
+ */
+@Target({ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheBulk {
+}
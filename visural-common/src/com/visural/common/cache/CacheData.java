@@ -49,4 +49,11 @@ public interface CacheData {
      * @param method 
      */
     void invalidateCache(Method method);
+
+    /**
+     * Invalidate the cached values tagged with the given tag, for all methods.
+     * See {@link CacheTag} and {@link TagProvider}.
+     * @param tag 
+     */
+    void invalidateByTag(String tag);
 }
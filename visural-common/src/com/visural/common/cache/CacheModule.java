@@ -16,7 +16,6 @@
  */
 package com.visural.common.cache;
 
-import com.visural.common.cache.impl.StandardKeyProvider;
 import com.visural.common.cache.impl.CacheInterceptor;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -26,21 +25,53 @@ import com.google.inject.Scopes;
 import com.google.inject.matcher.Matchers;
 import com.visural.common.cache.impl.CacheDataImpl;
 import com.visural.common.cache.impl.CacheStatsAggregated;
+import com.visural.common.cache.impl.CacheSnapshot;
+import com.visural.common.cache.impl.DiskStore;
+import com.visural.common.cache.impl.InvalidationBus;
+import com.visural.common.cache.impl.LoopbackTransport;
+import com.visural.common.cache.impl.MulticastTransport;
+import com.visural.common.cache.impl.OffHeapStore;
+import com.visural.common.cache.impl.StandardKeyProvider;
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Guice module to enable Caching functionality.
  *
  * You may provide your own {@link KeyProvider} by overriding
- * the `getKeyProvider` method.
+ * the `getKeyProvider` method, e.g. to use the {@link com.visural.common.cache.impl.CompositeKeyProvider}, and your own executor for background refreshes
+ * by overriding `createRefreshExecutor`. The location and size of the files
+ * used by {@link Cache#overflowToDisk()} are set by overriding `getDiskDirectory`
+ * and `getDiskMaxBytes`, and the memory used by {@link Cache#offHeap()} by 
+ * `getOffHeapMaxBytes`. The singleton caches can be saved to and loaded from a snapshot
+ * file for warm restarts, see `saveSnapshot`, `loadSnapshot` and 
+ * `scheduleSnapshots`. Invalidations are broadcast to other nodes if 
+ * `createInvalidationTransport` is overridden. Call `shutdown` to stop the module's background threads.
  *
  * @version $Id: CacheModule.java 38 2010-05-24 11:39:51Z tibes80@gmail.com $
  * @author Richard Nichols
  */
 public class CacheModule extends AbstractModule {    
 
+    private static final Logger logger = Logger.getLogger(CacheModule.class.getName());
+
     private final CacheInterceptor interceptor;
     private Injector injector;    
+    private ExecutorService refreshExecutor;
+    private ScheduledExecutorService snapshotExecutor;
+    private File snapshotFile;
+    private InvalidationBus invalidationBus;
 
     public CacheModule() {
         interceptor = new CacheInterceptor();
@@ -62,12 +93,175 @@ public class CacheModule extends AbstractModule {
         bindInterceptor(Matchers.subclassesOf(Cacheable.class), Matchers.annotatedWith(Cache.class), interceptor);
         requestInjection(interceptor);
         requestInjection(this);
+        if (refreshExecutor == null) {
+            refreshExecutor = createRefreshExecutor();
+            interceptor.setRefreshExecutor(refreshExecutor);
+        }
+        interceptor.setDiskDirectory(getDiskDirectory());
+        interceptor.setDiskMaxBytes(getDiskMaxBytes());
+        OffHeapStore.getInstance().setMaxBytes(getOffHeapMaxBytes());
+        if (invalidationBus == null) {
+            InvalidationTransport transport = createInvalidationTransport();
+            if (transport != null) {
+                // remote invalidations are applied to the tracked instances
+                interceptor.setTrackReferences(true);
+                invalidationBus = new InvalidationBus(interceptor, transport);
+                try {
+                    invalidationBus.start();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to start cache invalidation transport", e);
+                }
+                interceptor.setInvalidationBus(invalidationBus);
+            }
+        }
+    }
+
+    /**
+     * Transport used to broadcast cache invalidations to, and receive them 
+     * from, other nodes. The default is null, i.e. invalidations only apply 
+     * to this JVM. See {@link MulticastTransport} and {@link LoopbackTransport}.
+     * @return 
+     */
+    protected InvalidationTransport createInvalidationTransport() {
+        return null;
     }
 
     protected Class<? extends KeyProvider> getKeyProvider() {
         return StandardKeyProvider.class;
     }
 
+    /**
+     * Directory in which the disk stores of methods with {@link Cache#overflowToDisk()}
+     * create their files. The default is the system temp directory.
+     * @return 
+     */
+    protected File getDiskDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Maximum size of the file used by each method cache with {@link Cache#overflowToDisk()}.
+     * @return 
+     */
+    protected long getDiskMaxBytes() {
+        return DiskStore.DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * Maximum direct memory used by {@link Cache#offHeap()} values, shared by
+     * all caches (the last module configured sets it). Values which don't fit
+     * are kept on the heap.
+     * @return 
+     */
+    protected long getOffHeapMaxBytes() {
+        return OffHeapStore.DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * Executor used to reload entries in the background, see {@link Cache#refreshAfter()}.
+     * The default is a small pool of daemon threads with a bounded queue - 
+     * refreshes which don't fit are skipped and retried on a later hit.
+     * @return 
+     */
+    protected ExecutorService createRefreshExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, 
+                new ArrayBlockingQueue<Runnable>(1000), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache-refresh-"+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Writes the contents of the singleton caches to a file. Instance caches
+     * are not saved. See {@link CacheSnapshot}.
+     * @param file
+     * @return number of entries written
+     * @throws IOException 
+     */
+    public int saveSnapshot(File file) throws IOException {
+        return CacheSnapshot.save(interceptor, file);
+    }
+
+    /**
+     * Loads a snapshot written by `saveSnapshot`, skipping expired entries.
+     * Should be called at startup, before the caches are used.
+     * @param file
+     * @return number of entries read
+     * @throws IOException 
+     */
+    public int loadSnapshot(File file) throws IOException {
+        return CacheSnapshot.load(interceptor, file);
+    }
+
+    /**
+     * Saves a snapshot to the file periodically, and on shutdown (of the 
+     * module or the JVM).
+     * @param file
+     * @param periodMillis 
+     */
+    public synchronized void scheduleSnapshots(final File file, long periodMillis) {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+        } else {
+            Runtime.getRuntime().addShutdownHook(new Thread("cache-snapshot-shutdown") {
+                @Override
+                public void run() {
+                    saveScheduledSnapshot();
+                }
+            });
+        }
+        snapshotFile = file;
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache-snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                saveScheduledSnapshot();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void saveScheduledSnapshot() {
+        if (snapshotFile != null) {
+            try {
+                saveSnapshot(snapshotFile);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Unable to save cache snapshot "+snapshotFile, e);
+            }
+        }
+    }
+
+    /**
+     * Stops the background threads owned by this module, saving a final 
+     * snapshot if snapshots are scheduled.
+     */
+    public void shutdown() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+        }
+        if (invalidationBus != null) {
+            invalidationBus.stop();
+        }
+        synchronized (this) {
+            if (snapshotExecutor != null) {
+                snapshotExecutor.shutdown();
+                snapshotExecutor = null;
+                saveScheduledSnapshot();
+                snapshotFile = null;
+            }
+        }
+    }
+
     @Provides
     public CacheInterceptor getInterceptor() {
         return interceptor;
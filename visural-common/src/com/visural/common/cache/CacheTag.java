@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Tags the cached result with the value of this parameter, so that it can be
+ * invalidated along with the results of other methods sharing the tag, with
+ * {@link CacheData#invalidateByTag(String)}.
+ * 
+ * The tag is "name:argument", e.g. `@CacheTag("customer") long id` tags
+ * with "customer:42", or just the argument if no name is given. Each element
+ * of a collection or array argument is a separate tag. Null arguments are 
+ * not tagged.
+ * 
+ * @author Richard Nichols
+ */
+@Target({ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheTag {
+    
+    /**
+     * @return the name of the tag, prepended to the argument
+     */
+    String value() default "";
+}
@@ -25,15 +25,32 @@ public enum EvictionStrategy {
     LRU,  // LEAST RECENTLY USED (default)
     FIFO, // FIRST IN FIRST OUT
     
-    // Note that LFU and LFU_TIMECOST are more costly in terms of CPU and thread
-    // performance due to thread locking needing to occur for each get()
-    
     LFU,  // LEAST FREQUENTLY USED
     
     /**
-     * Sorts the entries by (timecost+1)*#uses and evicts the least valuable item.
+     * Ranks the entries by (timecost+1)*#uses and evicts the least valuable item.
      * +1 is added to timecost to ensure value >= 1.
      * Note that timecost uses System.nanoTime();
+     * Ranking is approximate - the evicted item is within a factor of two of 
+     * the least valuable one.
+     */
+    LFU_TIMECOST,
+    
+    /**
+     * Window TinyLFU. A small LRU window in front of a segmented LRU main space,
+     * with admission to the main space decided by a frequency sketch of recent
+     * requests. Gives near optimal hit rates for skewed access patterns mixed 
+     * with scans. See {@link com.visural.common.cache.impl.TinyLfuEvictionPolicy}
+     */
+    W_TINYLFU,
+
+    /**
+     * Adaptive Replacement Cache. Balances a list of entries seen once against
+     * a list of entries seen more than once, using the keys recently evicted 
+     * from each to tune how much of the cache each gets. Adapts as access 
+     * swings between recency and frequency. The current balance is reported
+     * as {@link com.visural.common.cache.impl.CacheStatsSnapshot#getArcTarget()}.
+     * See {@link com.visural.common.cache.impl.ArcEvictionPolicy}
      */
-    LFU_TIMECOST;
+    ARC;
 }
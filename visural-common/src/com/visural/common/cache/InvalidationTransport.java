@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache;
+
+import java.io.IOException;
+
+/**
+ * Carries batches of cache invalidations between application nodes, so that
+ * invalidating a cache on one node invalidates it on its peers. Provide one
+ * by overriding `createInvalidationTransport` in {@link CacheModule}.
+ * 
+ * Messages are opaque byte arrays. Delivery is best effort - a transport may
+ * drop messages, and may deliver a node's own messages back to it.
+ * 
+ * @author Richard Nichols
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Starts receiving messages from peers.
+     * @param receiver called with each message received, on a thread owned 
+     * by the transport
+     * @throws IOException 
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Sends a message to all peers.
+     * @param message
+     * @throws IOException 
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * @return the largest message which can be sent
+     */
+    int getMaxMessageSize();
+
+    /**
+     * Stops the transport.
+     */
+    void stop();
+
+    /**
+     * Receives messages from a transport.
+     */
+    interface Receiver {
+        void receive(byte[] message);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache;
+
+/**
+ * A {@link KeyProvider} whose keys are objects with value equals() and 
+ * hashCode(), which avoids building a string per call. The cache uses 
+ * `getKeyObject` rather than `getKey` when the bound provider implements 
+ * this, see {@link com.visural.common.cache.impl.CompositeKeyProvider}.
+ * 
+ * @author Richard Nichols
+ */
+public interface ObjectKeyProvider extends KeyProvider {
+
+    /**
+     * Convert {@link MethodCall} into a key for cache. The key must not 
+     * change once created, e.g. if the arguments are later mutated.
+     * @param methodCall
+     * @return
+     */
+    Object getKeyObject(MethodCall methodCall);
+}
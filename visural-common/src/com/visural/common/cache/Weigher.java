@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache;
+
+/**
+ * Calculates the weight of a cached result, for caches bounded by 
+ * {@link Cache#maxWeight()}. Implementations must have a public no-arg 
+ * constructor and be thread safe.
+ * 
+ * @author Richard Nichols
+ */
+public interface Weigher {
+
+    /**
+     * @param methodCall the call which produced the result
+     * @param result the result to be cached, may be null
+     * @return the weight of the result, >= 0
+     */
+    int weigh(MethodCall methodCall, Object result);
+}
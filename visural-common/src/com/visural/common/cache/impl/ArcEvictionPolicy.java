@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Eviction policy for {@link com.visural.common.cache.EvictionStrategy#ARC},
+ * the Adaptive Replacement Cache of Megiddo and Modha.
+ * 
+ * Entries seen once are kept in a recency list (T1), and move to a frequency
+ * list (T2) when read again. Each list has a ghost list of the keys it 
+ * recently evicted (B1, B2). A miss on a key in B1 means T1 was too small, so
+ * the target size of T1 grows; a miss on a key in B2 shrinks it. Evictions 
+ * take from T1 while it is above its target, and from T2 otherwise.
+ *
+ * @author Richard Nichols
+ */
+public class ArcEvictionPolicy implements EvictionPolicy {
+
+    private final int capacity;
+    // ordered from least to most recently used
+    private final LinkedHashMap<CacheEntry, CacheEntry> t1 = new LinkedHashMap<CacheEntry, CacheEntry>();
+    private final LinkedHashMap<CacheEntry, CacheEntry> t2 = new LinkedHashMap<CacheEntry, CacheEntry>();
+    private final LinkedHashMap<Object, Boolean> b1 = new LinkedHashMap<Object, Boolean>();
+    private final LinkedHashMap<Object, Boolean> b2 = new LinkedHashMap<Object, Boolean>();
+    // target size of t1, read without the lock for statistics
+    private volatile int target = 0;
+    private boolean lastAddFromB2 = false;
+
+    public ArcEvictionPolicy(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void onAdd(CacheEntry entry) {
+        Object key = entry.getKey();
+        lastAddFromB2 = false;
+        if (b1.remove(key) != null) {
+            // would have been a hit with a bigger T1
+            target = Math.min(capacity, target + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+            t2.put(entry, entry);
+        } else if (b2.remove(key) != null) {
+            target = Math.max(0, target - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+            t2.put(entry, entry);
+            lastAddFromB2 = true;
+        } else {
+            t1.put(entry, entry);
+        }
+        trimGhosts();
+    }
+
+    public void onAccess(CacheEntry entry) {
+        if (t1.remove(entry) != null) {
+            t2.put(entry, entry);
+        } else if (t2.remove(entry) != null) {
+            t2.put(entry, entry);
+        }
+    }
+
+    public void onUpdate(CacheEntry entry) {
+        // order doesn't depend on time cost
+    }
+
+    public void onRemove(CacheEntry entry) {
+        if (t1.remove(entry) == null) {
+            t2.remove(entry);
+        }
+    }
+
+    public CacheEntry evict() {
+        CacheEntry victim;
+        if (!t1.isEmpty() && (t1.size() > target || (lastAddFromB2 && t1.size() == target) || t2.isEmpty())) {
+            victim = removeEldest(t1);
+            b1.put(victim.getKey(), Boolean.TRUE);
+        } else if (!t2.isEmpty()) {
+            victim = removeEldest(t2);
+            b2.put(victim.getKey(), Boolean.TRUE);
+        } else {
+            return null;
+        }
+        trimGhosts();
+        return victim;
+    }
+
+    /**
+     * Keeps T1 + B1 within the capacity, and all four lists within twice it.
+     */
+    private void trimGhosts() {
+        while (!b1.isEmpty() && t1.size() + b1.size() > capacity) {
+            removeEldest(b1);
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity) {
+            if (!b2.isEmpty()) {
+                removeEldest(b2);
+            } else if (!b1.isEmpty()) {
+                removeEldest(b1);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static <K, V> K removeEldest(LinkedHashMap<K, V> map) {
+        Iterator<K> i = map.keySet().iterator();
+        K eldest = i.next();
+        i.remove();
+        return eldest;
+    }
+
+    public void clear() {
+        t1.clear();
+        t2.clear();
+        b1.clear();
+        b2.clear();
+        target = 0;
+    }
+
+    public boolean isAccessOrdered() {
+        return true;
+    }
+
+    /**
+     * @return the size T1 (the recency list) is being adapted towards, 
+     * between 0 and the capacity
+     */
+    public int getTarget() {
+        return target;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.visural.common.cache.MethodCall;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Watches a cached {@link Future} until it completes, then records the time 
+ * it took in the entry, or removes the entry if the Future failed.
+ * 
+ * A {@link ListenableFuture} notifies on completion. Any other Future is 
+ * polled on the {@link TimerWheel}, starting every tick and backing off to
+ * {@link #MAX_POLL_MILLIS}, so the recorded time cost may be late by up to 
+ * the poll interval. Polling stops once the entry is no longer cached, 
+ * which includes its time to live passing, so a Future which never 
+ * completes isn't polled forever.
+ *
+ * @author Richard Nichols
+ */
+public class AsyncLoad extends TimerWheel.Timer implements Runnable {
+
+    public static final long MAX_POLL_MILLIS = 100;
+    
+    // weak, so that polling doesn't keep a collected instance's caches alive
+    private final WeakReference<CacheDataImpl> cacheData;
+    private final MethodCall call;
+    private final CacheEntry entry;
+    private final Future<?> future;
+    private final long startNanos;
+    private long pollMillis = TimerWheel.TICK_MILLIS;
+    private long nextPoll;
+
+    AsyncLoad(CacheDataImpl cacheData, MethodCall call, CacheEntry entry, Future<?> future, long startNanos) {
+        this.cacheData = new WeakReference<CacheDataImpl>(cacheData);
+        this.call = call;
+        this.entry = entry;
+        this.future = future;
+        this.startNanos = startNanos;
+    }
+
+    void watch() {
+        if (future instanceof ListenableFuture) {
+            ((ListenableFuture<?>) future).addListener(this, MoreExecutors.sameThreadExecutor());
+        } else if (future.isDone()) {
+            run();
+        } else {
+            nextPoll = TimerWheel.now() + pollMillis;
+            TimerWheel.getInstance().schedule(this);
+        }
+    }
+
+    /**
+     * Called on completion.
+     */
+    public void run() {
+        CacheDataImpl data = cacheData.get();
+        if (data != null) {
+            data.asyncCompleted(call, entry, System.nanoTime() - startNanos, isFailed(future));
+        }
+    }
+
+    @Override
+    public long getExpiry() {
+        return nextPoll;
+    }
+
+    @Override
+    public void expire() {
+        CacheDataImpl data = cacheData.get();
+        if (future.isDone()) {
+            run();
+        } else if (data != null && data.peek(call) == entry) {
+            pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+            nextPoll = TimerWheel.now() + pollMillis;
+            TimerWheel.getInstance().schedule(this);
+        }
+    }
+
+    /**
+     * @param future
+     * @return whether the future has completed with an exception or was cancelled
+     */
+    static boolean isFailed(Future<?> future) {
+        if (!future.isDone()) {
+            return false;
+        }
+        if (future.isCancelled()) {
+            return true;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -22,11 +22,11 @@ import com.visural.common.cache.CacheData;
 import com.visural.common.cache.KeyProvider;
 import com.visural.common.cache.MethodCall;
 import java.lang.reflect.Method;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Local cache implementation.
@@ -36,10 +36,14 @@ import java.util.Set;
  */
 public class CacheDataImpl implements CacheData {
 
-    private Map<String, MethodCache> caches = new HashMap<String, MethodCache>();
+    // copy-on-write, replaced under the lock when a method cache is created
+    private volatile Map<MethodRegistry.Slot, MethodCache> caches = new IdentityHashMap<MethodRegistry.Slot, MethodCache>();
     private final KeyProvider keyProvider;
+    private final TagIndex tagIndex = new TagIndex();
     private final CacheInterceptor interceptor;
     private boolean singletonCache = false;
+    // the interceptor's instance registry this cache's owner was added to
+    volatile InstanceRegistry registeredWith = null;
 
     @Inject
     public CacheDataImpl(KeyProvider keyProvider, CacheInterceptor interceptor) {
@@ -60,13 +64,66 @@ public class CacheDataImpl implements CacheData {
         }
     }
     
+    /**
+     * See {@link MethodCache#peek(MethodCall)}.
+     */
+    public CacheEntry peek(MethodCall methodCall) {
+        MethodCache cache = getMethodCache(methodCall.getMethod());
+        return cache != null ? cache.peek(methodCall) : null;
+    }
+    
     public void markAsSingletonCache() {
         singletonCache = true;
     }
 
-    public void put(long created, long timeCost, MethodCall methodCall, Cache annot, Object result) {
+    public CacheEntry put(long created, long timeCost, MethodCall methodCall, Cache annot, Object result) {
         MethodCache cache = getAndCreateMethodCache(methodCall.getMethod(), annot);
-        cache.put(created, timeCost, methodCall, result);
+        return cache.put(created, timeCost, methodCall, result);
+    }
+
+    /**
+     * See {@link MethodCache#asyncCompleted(CacheEntry, long, boolean)}.
+     */
+    public void asyncCompleted(MethodCall methodCall, CacheEntry entry, long timeCost, boolean failed) {
+        MethodCache cache = getMethodCache(methodCall.getMethod());
+        if (cache != null) {
+            cache.asyncCompleted(entry, timeCost, failed);
+        }
+    }
+
+    /**
+     * Removes the entry if it is still cached.
+     */
+    public void remove(MethodCall methodCall, CacheEntry entry) {
+        MethodCache cache = getMethodCache(methodCall.getMethod());
+        if (cache != null) {
+            cache.remove(entry);
+        }
+    }
+
+    public PendingLoad beginLoad(MethodCall methodCall, Cache annot) {
+        return getAndCreateMethodCache(methodCall.getMethod(), annot).beginLoad(methodCall);
+    }
+
+    public void endLoad(MethodCall methodCall, PendingLoad load) {
+        MethodCache cache = getMethodCache(methodCall.getMethod());
+        if (cache != null) {
+            cache.endLoad(load);
+        }
+    }
+
+    /**
+     * @return the method caches which have been created so far
+     */
+    public List<MethodCache> getMethodCaches() {
+        return new ArrayList<MethodCache>(caches.values());
+    }
+
+    /**
+     * Adds previously cached entries for the method, see {@link CacheSnapshot}.
+     */
+    public void restore(Method m, Cache annot, List<CacheSnapshot.Entry> entries) {
+        getAndCreateMethodCache(m, annot).restore(entries);
     }
 
     protected MethodCache getAndCreateMethodCache(Method m, Cache annot) {
@@ -78,47 +135,83 @@ public class CacheDataImpl implements CacheData {
     }
     
     private synchronized MethodCache createMethodCache(Method m, Cache annot) {
-        MethodCache result = getMethodCache(m);
+        MethodRegistry.Slot slot = MethodRegistry.getInstance().resolve(m);
+        MethodCache result = caches.get(slot);
         if (result == null) {
-            result = new MethodCache(annot, m, keyProvider);
-            caches.put(getMethodString(m), result);
+            result = new MethodCache(annot, m, keyProvider, interceptor.getDiskDirectory(), interceptor.getDiskMaxBytes(), tagIndex);
+            Map<MethodRegistry.Slot, MethodCache> copy = new IdentityHashMap<MethodRegistry.Slot, MethodCache>(caches);
+            copy.put(slot, result);
+            caches = copy;
         }
         return result;
     }
     
     protected MethodCache getMethodCache(Method m) {
-        return caches.get(getMethodString(m));
-    }
-
-    // Method.toString() is actually quite expensive so we use a local cache for this
-    private Map<Method, String> methodToStringCache = Collections.synchronizedMap(new HashMap<Method, String>());
-    
-    private String getMethodString(Method m) {
-        String key = methodToStringCache.get(m);
-        if (key == null) {
-            key = m.toString();
-            methodToStringCache.put(m, key);
-        }
-        return key;        
+        return caches.get(MethodRegistry.getInstance().resolve(m));
     }
         
     public void invalidateCache(MethodCall methodCall) {
-        if (methodCall.getMethod().getAnnotation(Cache.class).singletonCache() && !singletonCache) {
+        if (MethodRegistry.getInstance().resolve(methodCall.getMethod()).getSettings().singletonCache() && !singletonCache) {
             interceptor.singletonCache.invalidateCache(methodCall);
         } else {
-            MethodCache cache = getMethodCache(methodCall.getMethod());
-            if (cache != null) {
-                cache.invalidateCache(methodCall);
-            }            
+            Object key = MethodCache.keyOf(keyProvider, methodCall);
+            invalidateLocal(methodCall.getMethod(), key);
+            if (interceptor.getInvalidationBus() != null) {
+                interceptor.getInvalidationBus().publish(methodCall.getMethod(), key);
+            }
         }
     }
 
     public void invalidateCache(Method method) {
-        if (method.getAnnotation(Cache.class).singletonCache() && !singletonCache) {
+        if (MethodRegistry.getInstance().resolve(method).getSettings().singletonCache() && !singletonCache) {
             interceptor.singletonCache.invalidateCache(method);
         } else {
-            MethodCache cache = getMethodCache(method);
-            if (cache != null) {
+            invalidateLocal(method, null);
+            if (interceptor.getInvalidationBus() != null) {
+                interceptor.getInvalidationBus().publish(method, null);
+            }
+        }
+    }
+
+    public void invalidateByTag(String tag) {
+        invalidateTagLocal(tag);
+        if (!singletonCache) {
+            // methods of the instance may use the singleton cache
+            interceptor.singletonCache.invalidateTagLocal(tag);
+        }
+        if (interceptor.getInvalidationBus() != null) {
+            interceptor.getInvalidationBus().publishTag(tag);
+        }
+    }
+
+    /**
+     * Invalidates the entries with the tag in this cache, in this JVM only.
+     * @param tag
+     * @return the number of keys invalidated
+     */
+    int invalidateTagLocal(String tag) {
+        return tagIndex.invalidate(tag);
+    }
+
+    /**
+     * @return the index of tagged entries, see {@link com.visural.common.cache.CacheTag}
+     */
+    public TagIndex getTagIndex() {
+        return tagIndex;
+    }
+
+    /**
+     * Invalidates in this JVM only, e.g. on receipt of a remote invalidation.
+     * @param method
+     * @param key key from the {@link KeyProvider}, or null to invalidate all
+     * values for the method
+     */
+    void invalidateLocal(Method method, Object key) {
+        MethodCache cache = getMethodCache(method);
+        if (cache != null) {
+            if (key != null) {
+                cache.invalidateKey(key);
+            } else {
                 cache.invalidateCache();
             }
         }
@@ -126,12 +219,9 @@ public class CacheDataImpl implements CacheData {
     
     public Map<String, CacheStatsAggregated> getStatistics(boolean estimateMemory) {
         Map<String, CacheStatsAggregated> result = new HashMap<String, CacheStatsAggregated>();
-        Set<String> keys;
-        synchronized (this) {
-            keys = new HashSet<String>(caches.keySet());
-        }
-        for (String key : keys) {
-            result.put(key, new CacheStatsAggregated(caches.get(key).getSettings(), caches.get(key).getStatsSnapshot(estimateMemory)));
+        for (Map.Entry<MethodRegistry.Slot, MethodCache> e : caches.entrySet()) {
+            MethodCache mc = e.getValue();
+            result.put(e.getKey().getName(), new CacheStatsAggregated(mc.getSettings(), mc.getStatsSnapshot(estimateMemory), mc.getHotKeys()));
         }
         return result;
     }
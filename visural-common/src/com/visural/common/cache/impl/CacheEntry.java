@@ -17,6 +17,7 @@
 package com.visural.common.cache.impl;
 
 import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -26,34 +27,58 @@ import java.util.concurrent.atomic.AtomicLong;
  * @author Richard Nichols
  */
 public class CacheEntry {
-    private final String key;
+
+    private static final AtomicIntegerFieldUpdater<CacheEntry> refreshingUpdater = 
+            AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "refreshing");
+    
+    private final Object key;
 
     private final long created;
     private final int ttl;
-    private final long timeCost;
+    private volatile long timeCost;
     private final Object result;
     private final boolean softRef;
+    private final boolean offHeap;
     private AtomicLong uses = new AtomicLong(1);
+    private volatile int refreshing = 0;
+    private TimerWheel.Timer timer = null;
+    private int weight = 0;
+    private String[] tags = null;
+    private int expireAfterAccess = 0;
+    // coarse time of the last read, only written once it is a few ticks old
+    private volatile long lastAccess;
 
-    public CacheEntry(String key, long created, long ttl, long timeCost, Object result) {
+    public CacheEntry(Object key, long created, long ttl, long timeCost, Object result) {
         this.key = key;
         this.created = created;        
         this.ttl = (int)ttl;
         this.timeCost = timeCost;
         this.result = result;
         softRef = false;
+        offHeap = false;
     }
 
-    public CacheEntry(String key, long created, long ttl, long timeCost, SoftReference result) {
+    public CacheEntry(Object key, long created, long ttl, long timeCost, SoftReference result) {
         this.key = key;
         this.created = created;        
         this.ttl = (int)ttl;
         this.timeCost = timeCost;
         softRef = true;
+        offHeap = false;
         this.result = (result.get() == null ? null : result);
     }
+
+    public CacheEntry(Object key, long created, long ttl, long timeCost, OffHeapStore.Handle result) {
+        this.key = key;
+        this.created = created;        
+        this.ttl = (int)ttl;
+        this.timeCost = timeCost;
+        softRef = false;
+        offHeap = true;
+        this.result = result;
+    }
     
-    public String getKey() {
+    public Object getKey() {
         return key;
     }
     
@@ -79,6 +104,8 @@ public class CacheEntry {
             } else {
                 return r;
             }
+        } else if (offHeap) {
+            return ((OffHeapStore.Handle)result).read();
         } else {
             return result;
         }
@@ -86,6 +113,10 @@ public class CacheEntry {
 
     public long getTimeCost() {
         return timeCost;
+    }
+
+    public void setTimeCost(long timeCost) {
+        this.timeCost = timeCost;
     }           
 
     public int getTtl() {
@@ -103,8 +134,131 @@ public class CacheEntry {
      */
     public boolean isExpired() {
         // Note: ttl == 0 means does not expire
-        return (ttl > 0 && System.currentTimeMillis() > created + ttl) 
-            || (softRef && result != null && ((SoftReference)result).get() == null);
+        return (ttl > 0 && TimerWheel.now() > created + ttl) 
+                || (expireAfterAccess > 0 && TimerWheel.now() > lastAccess + expireAfterAccess + accessSlack())
+                || isCollected();
+    }
+
+    /**
+     * @return the time at which the entry expires, or Long.MAX_VALUE if it 
+     * does not. Moves later as an entry which expires after access is read.
+     */
+    public long getExpiry() {
+        long expiry = ttl > 0 ? created + ttl : Long.MAX_VALUE;
+        if (expireAfterAccess > 0) {
+            expiry = Math.min(expiry, lastAccess + expireAfterAccess + accessSlack());
+        }
+        return expiry;
+    }
+
+    /**
+     * Records a read of the entry, if it expires after access. To avoid a 
+     * write on every hit, the access time is only updated once it is more 
+     * than 1/16 of <code>expireAfterAccess</code> old. The expiry allows for 
+     * that, so entries can expire a little late, but never early.
+     */
+    public void touch() {
+        if (expireAfterAccess > 0) {
+            long now = TimerWheel.now();
+            if (now - lastAccess > accessSlack()) {
+                lastAccess = now;
+            }
+        }
+    }
+
+    private long accessSlack() {
+        return Math.max(TimerWheel.TICK_MILLIS, expireAfterAccess >> 4);
+    }
+
+    public int getExpireAfterAccess() {
+        return expireAfterAccess;
+    }
+
+    /**
+     * @param expireAfterAccess time in milliseconds after the last read at 
+     * which the entry expires, 0 if it does not. Counts as a read.
+     */
+    public void setExpireAfterAccess(int expireAfterAccess) {
+        this.expireAfterAccess = expireAfterAccess;
+        lastAccess = TimerWheel.now();
+    }
+
+    /**
+     * @return whether the result is soft referenced and has been garbage 
+     * collected
+     */
+    public boolean isCollected() {
+        return softRef && result != null && ((SoftReference)result).get() == null;
+    }
+
+    /**
+     * @return whether the cached result is null or a {@link CachedException}
+     */
+    public boolean isNegative() {
+        return result == null || result instanceof CachedException;
+    }
+
+    /**
+     * @return the handle of the result if it is stored off heap, or null
+     */
+    public OffHeapStore.Handle getOffHeapHandle() {
+        return offHeap ? (OffHeapStore.Handle)result : null;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return the tags of the result, or null if it has none
+     */
+    public String[] getTags() {
+        return tags;
+    }
+
+    public void setTags(String[] tags) {
+        this.tags = tags;
+    }
+
+    /**
+     * @return the expiry timer scheduled for this entry, if it has a ttl or
+     * expires after access
+     */
+    public TimerWheel.Timer getTimer() {
+        return timer;
+    }
+
+    public void setTimer(TimerWheel.Timer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @param refreshAfter
+     * @return whether the entry is older than the refresh-ahead threshold
+     */
+    public boolean isRefreshDue(int refreshAfter) {
+        return refreshAfter > 0 && TimerWheel.now() > created + refreshAfter;
+    }
+
+    /**
+     * Claims the background refresh of this entry.
+     * @return true if the caller should refresh it, false if a refresh is 
+     * already in progress
+     */
+    public boolean beginRefresh() {
+        return refreshingUpdater.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Releases the refresh claim, after a refresh failed or could not be 
+     * scheduled. (A successful refresh replaces the entry.)
+     */
+    public void endRefresh() {
+        refreshing = 0;
     }
 
     @Override
@@ -17,19 +17,28 @@
 package com.visural.common.cache.impl;
 
 import com.google.inject.Inject;
-import com.visural.common.EqualsWeakReference;
 import com.visural.common.Unproxy;
 import com.visural.common.cache.Cache;
+import com.visural.common.cache.CacheBulk;
 import com.visural.common.cache.Cacheable;
 import com.visural.common.cache.KeyProvider;
 import com.visural.common.cache.MethodCall;
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.aopalliance.intercept.MethodInterceptor;
@@ -46,22 +55,42 @@ public class CacheInterceptor implements MethodInterceptor {
     private static final Logger logger = Logger.getLogger(CacheInterceptor.class.getName());
     
     @Inject KeyProvider keyProvider;
-    @Inject CacheDataImpl singletonCache;
+    CacheDataImpl singletonCache;
     
-    private Set<EqualsWeakReference<Cacheable>> instances = null;
+    private volatile InstanceRegistry instances = null;
+    private ExecutorService refreshExecutor = null;
+    private File diskDirectory = null;
+    private long diskMaxBytes = DiskStore.DEFAULT_MAX_BYTES;
+    private InvalidationBus invalidationBus = null;
+    
+    private static final Object NOT_CACHED = new Object();
+    
+    // set on a background thread while it re-invokes a method to refresh it
+    private static final ThreadLocal<Method> refreshCall = new ThreadLocal<Method>();
+    // set while a bulk method is re-invoked with the missing elements
+    private static final ThreadLocal<Method> bulkCall = new ThreadLocal<Method>();
 
     public CacheInterceptor() {
     }
+
+    @Inject
+    void setSingletonCache(CacheDataImpl singletonCache) {
+        singletonCache.markAsSingletonCache();
+        this.singletonCache = singletonCache;
+    }
     
     @Override
     public Object invoke(MethodInvocation mi) throws Throwable {        
-        singletonCache.markAsSingletonCache(); // TODO: only needed to be called once, but no suitable place to put it.
-        
-        Cache annot = (Cache) mi.getMethod().getAnnotation(Cache.class);
+        MethodRegistry.Slot slot = MethodRegistry.getInstance().resolve(mi.getMethod());
+        Cache annot = slot.getSettings();
         Cacheable cacheable = (Cacheable) mi.getThis();
-        if (instances != null) {
-            synchronized (this) {
-                instances.add(new EqualsWeakReference<Cacheable>(cacheable));
+        InstanceRegistry registry = instances;
+        if (registry != null) {
+            // once per instance, rather than on every call
+            CacheDataImpl data = (CacheDataImpl) cacheable.__cacheData();
+            if (data.registeredWith != registry) {
+                data.registeredWith = registry;
+                registry.register(cacheable);
             }
         }
 
@@ -69,49 +98,333 @@ public class CacheInterceptor implements MethodInterceptor {
                 singletonCache : (CacheDataImpl) cacheable.__cacheData();
         
         MethodCall call = MethodCall.fromInvocation(mi);
+        if (mi.getMethod().equals(refreshCall.get())) {
+            // background refresh - bypass the cached value
+            refreshCall.remove();
+            return load(mi, cacheData, call, annot, true);
+        }
+        if (slot.getBulkParameter() >= 0) {
+            if (mi.getMethod().equals(bulkCall.get())) {
+                // the call with the missing elements - pass straight through
+                bulkCall.remove();
+                return mi.proceed();
+            }
+            return bulkInvoke(mi, cacheData, annot, slot.getBulkParameter());
+        }
+        
         CacheEntry ce = cacheData.get(call);
+        Throwable cachedException = null;
         if (ce != null) {
             // attempt to return result. there is a minor possibility that a
             // soft reference is cleared by GC in between CacheEntry retrieval
             // and final return to caller
             try {
                 logger.log(Level.FINE, "Cache hit: {0}", call);
-                return ce.getResult();
+                Object result = ce.getResult();
+                if (result instanceof CachedException) {
+                    cachedException = ((CachedException) result).getException();
+                } else if (result instanceof Future && AsyncLoad.isFailed((Future<?>) result)) {
+                    // failed since it was cached, but not yet removed
+                    cacheData.remove(call, ce);
+                } else {
+                    if (ce.isRefreshDue(annot.refreshAfter()) && ce.beginRefresh()) {
+                        refresh(mi, ce);
+                    }
+                    return result;
+                }
             } catch (Throwable e) {
                 logger.log(Level.WARNING, "Cache error", e);
             }
         } 
+        if (cachedException != null) {
+            throw cachedException;
+        }
+
+        if (annot.coalesceLoads()) {
+            PendingLoad load = cacheData.beginLoad(call, annot);
+            if (!load.isOwner()) {
+                logger.log(Level.FINE, "Waiting for concurrent load: {0}", call);
+                return load.await();
+            }
+            try {
+                // a load may have completed between our miss and taking ownership
+                Object result = peekResult(cacheData, call);
+                if (result == NOT_CACHED) {
+                    result = load(mi, cacheData, call, annot, false);
+                } else if (result instanceof CachedException) {
+                    throw ((CachedException) result).getException();
+                }
+                load.complete(result);
+                return result;
+            } catch (Throwable t) {
+                load.fail(t);
+                throw t;
+            } finally {
+                cacheData.endLoad(call, load);
+            }
+        }
+        return load(mi, cacheData, call, annot, false);
+    }
+
+    /**
+     * @return the usable cached result of the call, without counting a 
+     * request, or {@link #NOT_CACHED}
+     */
+    private static Object peekResult(CacheDataImpl cacheData, MethodCall call) {
+        CacheEntry ce = cacheData.peek(call);
+        if (ce != null) {
+            try {
+                Object result = ce.getResult();
+                if (!(result instanceof Future && AsyncLoad.isFailed((Future<?>) result))) {
+                    return result;
+                }
+            } catch (Throwable e) {
+                logger.log(Level.WARNING, "Cache error", e);
+            }
+        }
+        return NOT_CACHED;
+    }
 
+    /**
+     * @param refreshing whether this is a background refresh, which leaves 
+     * the cached value in place if it fails, rather than caching the exception
+     */
+    private Object load(MethodInvocation mi, CacheDataImpl cacheData, MethodCall call, Cache annot, boolean refreshing) throws Throwable {
         // full execute
         try {                
             long inNano = System.nanoTime();
-            Object result = mi.proceed();
+            Object result;
+            try {
+                result = mi.proceed();
+            } catch (Throwable t) {
+                if (!refreshing && isCachedException(annot, t)) {
+                    long outNano = System.nanoTime();
+                    cacheData.put(TimerWheel.now(), outNano-inNano, call, annot, new CachedException(t));
+                }
+                throw t;
+            }
             long outNano = System.nanoTime();
-            long out = System.currentTimeMillis();
-            cacheData.put(out, outNano-inNano, call, annot, result);
+            long out = TimerWheel.now();
+            CacheEntry entry = cacheData.put(out, outNano-inNano, call, annot, result);
+            if (result instanceof Future) {
+                // cache the Future while in flight, so concurrent callers share it
+                new AsyncLoad(cacheData, call, entry, (Future<?>) result, inNano).watch();
+            }
             return result;
         } finally { //NOPMD
             // let error pass up the stack
         }
     }
 
+    /**
+     * Serves the elements of a {@link CacheBulk} collection which are cached,
+     * and calls the method once with the rest.
+     */
+    private Object bulkInvoke(MethodInvocation mi, CacheDataImpl cacheData, Cache annot, int param) throws Throwable {
+        // validates the method's settings on first use, as for other methods
+        cacheData.getAndCreateMethodCache(mi.getMethod(), annot);
+        Object[] args = mi.getArguments();
+        Collection<?> elements = (Collection<?>) args[param];
+        if (elements == null) {
+            return mi.proceed();
+        }
+        Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+        Collection<Object> missing = new LinkedHashSet<Object>();
+        int hits = 0;
+        for (Object element : elements) {
+            if (result.containsKey(element) || missing.contains(element)) {
+                continue;
+            }
+            CacheEntry ce = cacheData.get(elementCall(mi, param, element));
+            Object cached = null;
+            if (ce != null) {
+                try {
+                    cached = ce.getResult();
+                } catch (Throwable e) {
+                    logger.log(Level.WARNING, "Cache error", e);
+                    ce = null;
+                }
+            }
+            if (ce == null) {
+                missing.add(element);
+            } else {
+                hits++;
+                if (cached != null) {
+                    result.put(element, cached);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            logger.log(Level.FINE, "Cache hit on all elements: {0}", mi.getMethod());
+            return result;
+        }
+
+        Collection<Object> subset = newCollection(mi.getMethod().getParameterTypes()[param]);
+        subset.addAll(missing);
+        Object[] subsetArgs = args.clone();
+        subsetArgs[param] = subset;
+        long inNano = System.nanoTime();
+        Map<?, ?> loaded = (Map<?, ?>) invokeBulk(mi, subsetArgs);
+        long outNano = System.nanoTime();
+        long out = TimerWheel.now();
+        if (loaded == null) {
+            return null;
+        }
+        // the load time is shared between the elements loaded
+        long timeCost = (outNano - inNano) / missing.size();
+        for (Object element : missing) {
+            Object value = loaded.get(element);
+            cacheData.put(out, timeCost, elementCall(mi, param, element), annot, value);
+            if (value != null) {
+                result.put(element, value);
+            }
+        }
+        // keep request order when some were cached
+        if (hits > 0) {
+            Map<Object, Object> ordered = new LinkedHashMap<Object, Object>();
+            for (Object element : elements) {
+                if (result.containsKey(element)) {
+                    ordered.put(element, result.get(element));
+                }
+            }
+            result = ordered;
+        }
+        return result;
+    }
+
+    private static MethodCall elementCall(MethodInvocation mi, int param, Object element) {
+        Object[] args = mi.getArguments().clone();
+        args[param] = Collections.singletonList(element);
+        return new MethodCall(mi.getMethod(), args);
+    }
+
+    /**
+     * Calls the method with its own copy of the arguments, through the 
+     * interceptor, which passes it straight through.
+     */
+    private static Object invokeBulk(MethodInvocation mi, Object[] args) throws Throwable {
+        Method method = mi.getMethod();
+        bulkCall.set(method);
+        try {
+            method.setAccessible(true);
+            return method.invoke(mi.getThis(), args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            bulkCall.remove();
+        }
+    }
+
+    /**
+     * @param type declared type of a {@link CacheBulk} parameter
+     * @return an empty collection which can be passed as the parameter, or 
+     * null if the type can't hold any of those supported
+     */
+    static Collection<Object> newCollection(Class<?> type) {
+        if (type.isAssignableFrom(ArrayList.class)) {
+            return new ArrayList<Object>();
+        } else if (type.isAssignableFrom(LinkedHashSet.class)) {
+            return new LinkedHashSet<Object>();
+        } else if (type.isAssignableFrom(TreeSet.class)) {
+            return new TreeSet<Object>();
+        }
+        return null;
+    }
+
+    private static boolean isCachedException(Cache annot, Throwable t) {
+        for (Class<? extends Throwable> c : annot.cacheExceptions()) {
+            if (c.isInstance(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Re-invokes the method on the refresh executor, which reloads and replaces
+     * the entry.
+     */
+    private void refresh(MethodInvocation mi, final CacheEntry ce) {
+        if (refreshExecutor == null) {
+            ce.endRefresh();
+            return;
+        }
+        final Object target = mi.getThis();
+        final Method method = mi.getMethod();
+        final Object[] args = mi.getArguments().clone();
+        try {
+            refreshExecutor.execute(new Runnable() {
+                public void run() {
+                    refreshCall.set(method);
+                    try {
+                        method.setAccessible(true);
+                        method.invoke(target, args);
+                    } catch (Throwable t) {
+                        logger.log(Level.WARNING, "Background refresh failed for "+method, t);
+                        ce.endRefresh();
+                    } finally {
+                        refreshCall.remove();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // refresh queue is full, a later hit will try again
+            ce.endRefresh();
+        }
+    }
+
+    public void setRefreshExecutor(ExecutorService refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @return the bus which broadcasts invalidations to peers, or null
+     */
+    public InvalidationBus getInvalidationBus() {
+        return invalidationBus;
+    }
+
+    public void setInvalidationBus(InvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
+    public File getDiskDirectory() {
+        return diskDirectory;
+    }
+
+    public void setDiskDirectory(File diskDirectory) {
+        this.diskDirectory = diskDirectory;
+    }
+
+    public long getDiskMaxBytes() {
+        return diskMaxBytes;
+    }
+
+    public void setDiskMaxBytes(long diskMaxBytes) {
+        this.diskMaxBytes = diskMaxBytes;
+    }
+
+    /**
+     * @return the tracked {@link Cacheable} instances which have not been 
+     * garbage collected (empty unless references are tracked)
+     */
+    public List<Cacheable> getInstances() {
+        InstanceRegistry registry = instances;
+        return registry != null ? registry.getInstances() : new ArrayList<Cacheable>();
+    }
+
     public synchronized void setTrackReferences(boolean trackReferences) {
         if (instances == null && trackReferences) {
-            instances = new HashSet<EqualsWeakReference<Cacheable>>();
+            instances = new InstanceRegistry();
         } else if (instances != null && !trackReferences) {
             instances = null;
         }
     }        
     
-    public synchronized void clearDeferencedInstances() {
-        if (instances != null) {
-            Iterator<EqualsWeakReference<Cacheable>> i = instances.iterator();
-            while (i.hasNext()) {
-                WeakReference<Cacheable> e = i.next();
-                if (e.get() == null) {
-                    i.remove();
-                }
-            }
+    public void clearDeferencedInstances() {
+        InstanceRegistry registry = instances;
+        if (registry != null) {
+            registry.expunge();
         }        
     }
     
@@ -123,26 +436,19 @@ public class CacheInterceptor implements MethodInterceptor {
     public Map<String, Map<String, CacheStatsAggregated>> getStatistics(boolean estimateMemory) {
         Map<String, Map<String, CacheStatsAggregated>> result = new HashMap<String, Map<String, CacheStatsAggregated>>();
         if (instances != null) {
-            Set<WeakReference<Cacheable>> instancesSnapshot;
-            synchronized (this) {
-                instancesSnapshot = new HashSet<WeakReference<Cacheable>>(instances);
-            }
-            for (WeakReference<Cacheable> c : instancesSnapshot) {
-                if (c.get() != null) {
-                    Map<String, CacheStatsAggregated> cs = c.get().__cacheData().getStatistics(estimateMemory);
-                    String key = Unproxy.clazz(c.get().getClass()).getName();
-                    if (result.get(key) == null) {
-                        result.put(key, cs);
-                    } else {
-                        for (Entry<String,CacheStatsAggregated> e : cs.entrySet()) {
-                            if (result.get(key).get(e.getKey()) != null) {
-                                result.get(key).put(e.getKey(), result.get(key).get(e.getKey()).combine(e.getValue()));
-                            } else {
-                                result.get(key).put(e.getKey(), e.getValue());
-                            }
+            for (Cacheable c : getInstances()) {
+                Map<String, CacheStatsAggregated> cs = c.__cacheData().getStatistics(estimateMemory);
+                String key = Unproxy.clazz(c.getClass()).getName();
+                if (result.get(key) == null) {
+                    result.put(key, cs);
+                } else {
+                    for (Entry<String,CacheStatsAggregated> e : cs.entrySet()) {
+                        if (result.get(key).get(e.getKey()) != null) {
+                            result.get(key).put(e.getKey(), result.get(key).get(e.getKey()).combine(e.getValue()));
+                        } else {
+                            result.get(key).put(e.getKey(), e.getValue());
                         }
                     }
-
                 }
             }
             if (!singletonCache.isEmpty()) {
@@ -7,17 +7,41 @@ import java.io.Serializable;
 public class CacheSettings implements Serializable {
 
     private int timeToLive;
+    private String cacheExceptions;
+    private int exceptionTimeToLive;
+    private int nullTimeToLive;
     private int maxEntries;
+    private long maxWeight;
     private EvictionStrategy evictionStrategy;   
     private boolean softValues;   
+    private boolean offHeap;
+    private boolean overflowToDisk;
     private boolean singletonCache;
+    private boolean coalesceLoads;
+    private int refreshAfter;
+    private int expireAfterAccess;
+    private int hotKeys;
 
     public CacheSettings(Cache settings) {
         timeToLive = settings.timeToLive();
+        StringBuilder sb = new StringBuilder();
+        for (Class<?> c : settings.cacheExceptions()) {
+            sb.append(sb.length() > 0 ? "," : "").append(c.getSimpleName());
+        }
+        cacheExceptions = sb.toString();
+        exceptionTimeToLive = settings.exceptionTimeToLive();
+        nullTimeToLive = settings.nullTimeToLive();
         maxEntries = settings.maxEntries();
+        maxWeight = settings.maxWeight();
         evictionStrategy = settings.evictionStrategy();
         softValues = settings.softValues();
+        offHeap = settings.offHeap();
+        overflowToDisk = settings.overflowToDisk();
         singletonCache = settings.singletonCache();
+        coalesceLoads = settings.coalesceLoads();
+        refreshAfter = settings.refreshAfter();
+        expireAfterAccess = settings.expireAfterAccess();
+        hotKeys = settings.hotKeys();
     }
 
     public EvictionStrategy getEvictionStrategy() {
@@ -28,10 +52,29 @@ public class CacheSettings implements Serializable {
         return maxEntries;
     }
 
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
     public int getTimeToLive() {
         return timeToLive;
     }
 
+    /**
+     * @return simple names of the exceptions which are cached, comma separated
+     */
+    public String getCacheExceptions() {
+        return cacheExceptions;
+    }
+
+    public int getExceptionTimeToLive() {
+        return exceptionTimeToLive;
+    }
+
+    public int getNullTimeToLive() {
+        return nullTimeToLive;
+    }
+
     public boolean isSingletonCache() {
         return singletonCache;
     }
@@ -39,5 +82,29 @@ public class CacheSettings implements Serializable {
     public boolean isSoftValues() {
         return softValues;
     }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public boolean isOverflowToDisk() {
+        return overflowToDisk;
+    }
+
+    public boolean isCoalesceLoads() {
+        return coalesceLoads;
+    }
+
+    public int getRefreshAfter() {
+        return refreshAfter;
+    }
+
+    public int getExpireAfterAccess() {
+        return expireAfterAccess;
+    }
+
+    public int getHotKeys() {
+        return hotKeys;
+    }
     
 }
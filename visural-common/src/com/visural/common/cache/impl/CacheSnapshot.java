@@ -0,0 +1,303 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.ClassLoaderObjectInputStream;
+import com.visural.common.cache.Cache;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the contents of the caches to a file and restores them, so that a 
+ * restarted application starts with warm caches.
+ * 
+ * The file holds a block per singleton method cache. Each block is a length
+ * prefixed serialized list of entries (key, created, ttl, time cost, weight, 
+ * tags and result), so blocks can be deserialized in parallel on load. Caches
+ * whose keys or results are not serializable are skipped.
+ * 
+ * Instance caches are not saved - an instance has no identity which survives
+ * a restart, and its results may depend on its state.
+ * 
+ * On load, entries which have expired are skipped.
+ *
+ * @author Richard Nichols
+ */
+public class CacheSnapshot {
+
+    private static final Logger logger = Logger.getLogger(CacheSnapshot.class.getName());
+    
+    private static final int MAGIC = 0x56434333;
+
+    /**
+     * Writes the caches to the file. The file is replaced atomically where the
+     * platform allows.
+     * @param interceptor
+     * @param file
+     * @return number of entries written
+     * @throws IOException 
+     */
+    public static int save(CacheInterceptor interceptor, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            count += writeCaches(out, interceptor.singletonCache);
+            out.writeBoolean(false);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to replace snapshot "+file);
+            }
+        }
+        return count;
+    }
+
+    private static int writeCaches(DataOutputStream out, CacheDataImpl data) throws IOException {
+        int count = 0;
+        for (MethodCache mc : data.getMethodCaches()) {
+            List<CacheEntry> entries = mc.getEntries();
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            int written = 0;
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(block);
+                for (CacheEntry e : entries) {
+                    Object result;
+                    try {
+                        result = e.getResult();
+                    } catch (Throwable t) {
+                        continue; // soft reference cleared or off heap value released
+                    }
+                    if (e.isExpired()) {
+                        continue;
+                    }
+                    oos.writeBoolean(true);
+                    oos.writeObject(e.getKey());
+                    oos.writeLong(e.getCreated());
+                    oos.writeInt(e.getTtl());
+                    oos.writeLong(e.getTimeCost());
+                    oos.writeInt(e.getWeight());
+                    oos.writeObject(e.getTags());
+                    oos.writeObject(result);
+                    written++;
+                }
+                oos.writeBoolean(false);
+                oos.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Unable to snapshot cache for "+mc.getMethod()+" - keys and results must be serializable", ex);
+                continue;
+            }
+            out.writeBoolean(true);
+            out.writeUTF(mc.getMethod().getDeclaringClass().getName());
+            out.writeUTF(mc.getMethod().toString());
+            out.writeInt(block.size());
+            block.writeTo(out);
+            count += written;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the caches from the file, deserializing and restoring blocks in
+     * parallel.
+     * @param interceptor
+     * @param file
+     * @return number of entries read (including expired entries, which are skipped)
+     * @throws IOException 
+     */
+    public static int load(final CacheInterceptor interceptor, File file) throws IOException {
+        List<Future<Block>> blocks = new ArrayList<Future<Block>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a cache snapshot "+file);
+                }
+                while (in.readBoolean()) {
+                    final String declaringClass = in.readUTF();
+                    final String method = in.readUTF();
+                    final byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    blocks.add(executor.submit(new Callable<Block>() {
+                        public Block call() throws Exception {
+                            Block b = readBlock(declaringClass, method, data);
+                            if (b != null) {
+                                interceptor.singletonCache.restore(b.method, b.annot, b.entries);
+                            }
+                            return b;
+                        }
+                    }));
+                }
+            } finally {
+                in.close();
+            }
+            int count = 0;
+            for (Future<Block> f : blocks) {
+                try {
+                    Block b = f.get();
+                    if (b != null) {
+                        count += b.entries.size();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted loading snapshot "+file);
+                } catch (ExecutionException e) {
+                    logger.log(Level.WARNING, "Unable to load cache from snapshot "+file, e.getCause());
+                }
+            }
+            return count;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Block readBlock(String declaringClass, String methodString, byte[] data) throws IOException {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        if (cl == null) {
+            cl = CacheSnapshot.class.getClassLoader();
+        }
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(declaringClass, false, cl);
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.FINE, "Skipping snapshot of {0}, class not found", methodString);
+            return null;
+        }
+        Method method = null;
+        for (Method m : clazz.getDeclaredMethods()) {
+            if (m.toString().equals(methodString)) {
+                method = m;
+            }
+        }
+        Cache annot = method == null ? null : method.getAnnotation(Cache.class);
+        if (annot == null) {
+            logger.log(Level.FINE, "Skipping snapshot of {0}, method is no longer cached", methodString);
+            return null;
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        ObjectInputStream ois = new ClassLoaderObjectInputStream(clazz.getClassLoader(), new ByteArrayInputStream(data));
+        try {
+            while (ois.readBoolean()) {
+                Object key = ois.readObject();
+                long created = ois.readLong();
+                int ttl = ois.readInt();
+                long timeCost = ois.readLong();
+                int weight = ois.readInt();
+                String[] tags = (String[]) ois.readObject();
+                Object result = ois.readObject();
+                entries.add(new Entry(key, created, ttl, timeCost, weight, tags, result));
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read snapshot of "+methodString+": "+e.getMessage());
+        }
+        return new Block(method, annot, entries);
+    }
+
+    /**
+     * A method cache read from a snapshot.
+     */
+    static class Block {
+        final Method method;
+        final Cache annot;
+        final List<Entry> entries;
+
+        Block(Method method, Cache annot, List<Entry> entries) {
+            this.method = method;
+            this.annot = annot;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * A cache entry read from a snapshot.
+     */
+    public static class Entry {
+        private final Object key;
+        private final long created;
+        private final int ttl;
+        private final long timeCost;
+        private final int weight;
+        private final String[] tags;
+        private final Object result;
+
+        Entry(Object key, long created, int ttl, long timeCost, int weight, String[] tags, Object result) {
+            this.key = key;
+            this.created = created;
+            this.ttl = ttl;
+            this.timeCost = timeCost;
+            this.weight = weight;
+            this.tags = tags;
+            this.result = result;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public int getTtl() {
+            return ttl;
+        }
+
+        public long getTimeCost() {
+            return timeCost;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public String[] getTags() {
+            return tags;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+
+        public boolean isExpired() {
+            return ttl > 0 && TimerWheel.now() > created + ttl;
+        }
+    }
+}
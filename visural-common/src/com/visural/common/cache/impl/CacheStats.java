@@ -31,33 +31,70 @@ public class CacheStats implements Serializable {
     private final AtomicLong loadCount;
     private final AtomicLong totalLoadTime;
     private final AtomicLong evictionCount;
+    private final AtomicLong sketchSampleCount;
+    private final AtomicLong sketchAgingCount;
+    private final AtomicLong coalescedWaitCount;
+    private final AtomicLong diskHitCount;
+    private final AtomicLong diskSpillCount;
+    private final AtomicLong negativeHitCount;
+    private final AtomicLong collectedCount;
+    private final LatencyHistogram loadTimeHistogram = new LatencyHistogram();
+    private final LatencyHistogram hitTimeHistogram = new LatencyHistogram();
 
     public CacheStats() {
-        this(0, 1, 0, 0, 0);
+        this(0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
     }
 
-    public CacheStats(long hitCount, long missCount, long loadCount, long totalLoadTime, long evictionCount) {
+    public CacheStats(long hitCount, long missCount, long loadCount, long totalLoadTime, long evictionCount,
+            long sketchSampleCount, long sketchAgingCount, long coalescedWaitCount, long diskHitCount, long diskSpillCount, long negativeHitCount, long collectedCount) {
         this.hitCount = new AtomicLong(hitCount);
         this.missCount = new AtomicLong(missCount);
         this.loadCount = new AtomicLong(loadCount);
         this.totalLoadTime = new AtomicLong(totalLoadTime);
         this.evictionCount = new AtomicLong(evictionCount);    
+        this.sketchSampleCount = new AtomicLong(sketchSampleCount);
+        this.sketchAgingCount = new AtomicLong(sketchAgingCount);
+        this.coalescedWaitCount = new AtomicLong(coalescedWaitCount);
+        this.diskHitCount = new AtomicLong(diskHitCount);
+        this.diskSpillCount = new AtomicLong(diskSpillCount);
+        this.negativeHitCount = new AtomicLong(negativeHitCount);
+        this.collectedCount = new AtomicLong(collectedCount);
     }
     
     public CacheStats plus(CacheStats other) {
-        return new CacheStats(hitCount.get()+other.hitCount.get(),
+        CacheStats result = new CacheStats(hitCount.get()+other.hitCount.get(),
                 missCount.get()+other.missCount.get(),
                 loadCount.get()+other.loadCount.get(),
                 totalLoadTime.get()+other.totalLoadTime.get(),
-                evictionCount.get()+other.evictionCount.get());
+                evictionCount.get()+other.evictionCount.get(),
+                sketchSampleCount.get()+other.sketchSampleCount.get(),
+                sketchAgingCount.get()+other.sketchAgingCount.get(),
+                coalescedWaitCount.get()+other.coalescedWaitCount.get(),
+                diskHitCount.get()+other.diskHitCount.get(),
+                diskSpillCount.get()+other.diskSpillCount.get(),
+                negativeHitCount.get()+other.negativeHitCount.get(),
+                collectedCount.get()+other.collectedCount.get());
+        result.loadTimeHistogram.add(loadTimeHistogram.snapshot().plus(other.loadTimeHistogram.snapshot()));
+        result.hitTimeHistogram.add(hitTimeHistogram.snapshot().plus(other.hitTimeHistogram.snapshot()));
+        return result;
     }
     
     public CacheStats minus(CacheStats other) {
-        return new CacheStats(hitCount.get()-other.hitCount.get(),
+        CacheStats result = new CacheStats(hitCount.get()-other.hitCount.get(),
                 missCount.get()-other.missCount.get(),
                 loadCount.get()-other.loadCount.get(),
                 totalLoadTime.get()-other.totalLoadTime.get(),
-                evictionCount.get()-other.evictionCount.get());
+                evictionCount.get()-other.evictionCount.get(),
+                sketchSampleCount.get()-other.sketchSampleCount.get(),
+                sketchAgingCount.get()-other.sketchAgingCount.get(),
+                coalescedWaitCount.get()-other.coalescedWaitCount.get(),
+                diskHitCount.get()-other.diskHitCount.get(),
+                diskSpillCount.get()-other.diskSpillCount.get(),
+                negativeHitCount.get()-other.negativeHitCount.get(),
+                collectedCount.get()-other.collectedCount.get());
+        result.loadTimeHistogram.add(loadTimeHistogram.snapshot().minus(other.loadTimeHistogram.snapshot()));
+        result.hitTimeHistogram.add(hitTimeHistogram.snapshot().minus(other.hitTimeHistogram.snapshot()));
+        return result;
     }
     
     public long getRequestCount() {
@@ -104,6 +141,70 @@ public class CacheStats implements Serializable {
         return totalLoadTime;
     }
 
+    /**
+     * @return number of samples recorded by the W-TinyLFU frequency sketch
+     */
+    public AtomicLong getSketchSampleCount() {
+        return sketchSampleCount;
+    }
+
+    /**
+     * @return number of times the W-TinyLFU frequency sketch has been aged (halved)
+     */
+    public AtomicLong getSketchAgingCount() {
+        return sketchAgingCount;
+    }
+
+    /**
+     * @return number of callers which waited for and shared a concurrent load
+     * of the same entry, rather than executing the method
+     */
+    public AtomicLong getCoalescedWaitCount() {
+        return coalescedWaitCount;
+    }
+
+    /**
+     * @return misses which were served from the disk store
+     */
+    public AtomicLong getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    /**
+     * @return evicted entries written to the disk store
+     */
+    public AtomicLong getDiskSpillCount() {
+        return diskSpillCount;
+    }
+
+    /**
+     * @return hits which returned a cached null or exception
+     */
+    public AtomicLong getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /**
+     * @return number of soft referenced results removed after being garbage collected
+     */
+    public AtomicLong getCollectedCount() {
+        return collectedCount;
+    }
+
+    /**
+     * @return distribution of load times (nanoseconds)
+     */
+    public LatencyHistogram getLoadTimeHistogram() {
+        return loadTimeHistogram;
+    }
+
+    /**
+     * @return distribution of the time taken to look up hits (nanoseconds)
+     */
+    public LatencyHistogram getHitTimeHistogram() {
+        return hitTimeHistogram;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -114,6 +215,13 @@ public class CacheStats implements Serializable {
         sb.append("totalLoadTime = ").append(totalLoadTime).append('\n');
         sb.append("averageLoadTime = ").append(getAverageLoadTimeNanos()).append('\n');
         sb.append("evictionCount = ").append(evictionCount).append('\n');
+        sb.append("sketchSampleCount = ").append(sketchSampleCount).append('\n');
+        sb.append("sketchAgingCount = ").append(sketchAgingCount).append('\n');
+        sb.append("coalescedWaitCount = ").append(coalescedWaitCount).append('\n');
+        sb.append("diskHitCount = ").append(diskHitCount).append('\n');
+        sb.append("diskSpillCount = ").append(diskSpillCount).append('\n');
+        sb.append("negativeHitCount = ").append(negativeHitCount).append('\n');
+        sb.append("collectedCount = ").append(collectedCount).append('\n');
         return sb.toString();
     }
         
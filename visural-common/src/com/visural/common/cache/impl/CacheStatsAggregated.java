@@ -23,10 +23,16 @@ public class CacheStatsAggregated {
     private CacheSettings settings;
     private int instanceCount = 1;
     private CacheStatsSnapshot combinedStats;
+    private HotKeys hotKeys;
 
     public CacheStatsAggregated(Cache settings, CacheStatsSnapshot stats) {
+        this(settings, stats, null);
+    }
+
+    public CacheStatsAggregated(Cache settings, CacheStatsSnapshot stats, HotKeys hotKeys) {
         this.settings = new CacheSettings(settings);
         this.combinedStats = stats;
+        this.hotKeys = hotKeys;
     }
     
     public CacheStatsAggregated combine(CacheStatsSnapshot snapshot) {
@@ -38,6 +44,11 @@ public class CacheStatsAggregated {
     public CacheStatsAggregated combine(CacheStatsAggregated snapshot) {
         instanceCount += snapshot.getInstanceCount();
         combinedStats = combinedStats.plus(snapshot.getCombinedStats());
+        if (hotKeys == null) {
+            hotKeys = snapshot.getHotKeys();
+        } else if (snapshot.getHotKeys() != null) {
+            hotKeys = hotKeys.plus(snapshot.getHotKeys());
+        }
         return this;
     }
 
@@ -49,6 +60,14 @@ public class CacheStatsAggregated {
         return instanceCount;
     }
 
+    /**
+     * @return the heaviest keys across instances, or null if hot keys are 
+     * not tracked
+     */
+    public HotKeys getHotKeys() {
+        return hotKeys;
+    }
+
     public CacheSettings getSettings() {
         return settings;
     }
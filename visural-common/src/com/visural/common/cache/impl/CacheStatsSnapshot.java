@@ -31,21 +31,57 @@ public class CacheStatsSnapshot implements Serializable {
     private final AtomicLong loadCount;
     private final AtomicLong totalLoadTime;
     private final AtomicLong evictionCount;
+    private final AtomicLong sketchSampleCount;
+    private final AtomicLong sketchAgingCount;
+    private final AtomicLong coalescedWaitCount;
+    private final AtomicLong diskHitCount;
+    private final AtomicLong diskSpillCount;
+    private final AtomicLong negativeHitCount;
+    private final AtomicLong collectedCount;
+    private final HistogramSnapshot loadTimeHistogram;
+    private final HistogramSnapshot hitTimeHistogram;
     private final int entries;
+    private final long weight;
+    private final int arcTarget;
     private final int estimatedMemoryUsage;
+    private final int estimatedMemoryMargin;
        
-    public CacheStatsSnapshot(CacheStats stats, int entries, int estimatedMemoryUsage) {
-        this(stats.getHitCount().get(), stats.getMissCount().get(), stats.getLoadCount().get(), stats.getTotalLoadTime().get(), stats.getEvictionCount().get(), entries, estimatedMemoryUsage);        
+    public CacheStatsSnapshot(CacheStats stats, int entries, long weight, int estimatedMemoryUsage) {
+        this(stats, entries, weight, estimatedMemoryUsage, 0);
     }
 
-    public CacheStatsSnapshot(long hitCount, long missCount, long loadCount, long totalLoadTime, long evictionCount, int entries, int estimatedMemoryUsage) {
+    public CacheStatsSnapshot(CacheStats stats, int entries, long weight, int estimatedMemoryUsage, int estimatedMemoryMargin) {
+        this(stats, entries, weight, 0, estimatedMemoryUsage, estimatedMemoryMargin);
+    }
+
+    public CacheStatsSnapshot(CacheStats stats, int entries, long weight, int arcTarget, int estimatedMemoryUsage, int estimatedMemoryMargin) {
+        this(stats.getHitCount().get(), stats.getMissCount().get(), stats.getLoadCount().get(), stats.getTotalLoadTime().get(), stats.getEvictionCount().get(),
+                stats.getSketchSampleCount().get(), stats.getSketchAgingCount().get(), stats.getCoalescedWaitCount().get(), stats.getDiskHitCount().get(), stats.getDiskSpillCount().get(), stats.getNegativeHitCount().get(), stats.getCollectedCount().get(), 
+                stats.getLoadTimeHistogram().snapshot(), stats.getHitTimeHistogram().snapshot(), entries, weight, arcTarget, estimatedMemoryUsage, estimatedMemoryMargin);
+    }
+
+    public CacheStatsSnapshot(long hitCount, long missCount, long loadCount, long totalLoadTime, long evictionCount,
+            long sketchSampleCount, long sketchAgingCount, long coalescedWaitCount, long diskHitCount, long diskSpillCount, long negativeHitCount, long collectedCount, 
+            HistogramSnapshot loadTimeHistogram, HistogramSnapshot hitTimeHistogram, int entries, long weight, int arcTarget, int estimatedMemoryUsage, int estimatedMemoryMargin) {
         this.hitCount = new AtomicLong(hitCount);
         this.missCount = new AtomicLong(missCount);
         this.loadCount = new AtomicLong(loadCount);
         this.totalLoadTime = new AtomicLong(totalLoadTime);
         this.evictionCount = new AtomicLong(evictionCount);    
+        this.sketchSampleCount = new AtomicLong(sketchSampleCount);
+        this.sketchAgingCount = new AtomicLong(sketchAgingCount);
+        this.coalescedWaitCount = new AtomicLong(coalescedWaitCount);
+        this.diskHitCount = new AtomicLong(diskHitCount);
+        this.diskSpillCount = new AtomicLong(diskSpillCount);
+        this.negativeHitCount = new AtomicLong(negativeHitCount);
+        this.collectedCount = new AtomicLong(collectedCount);
+        this.loadTimeHistogram = loadTimeHistogram;
+        this.hitTimeHistogram = hitTimeHistogram;
         this.entries = entries;
+        this.weight = weight;
+        this.arcTarget = arcTarget;
         this.estimatedMemoryUsage = estimatedMemoryUsage;
+        this.estimatedMemoryMargin = estimatedMemoryMargin;
     }
     
     public CacheStatsSnapshot plus(CacheStatsSnapshot other) {
@@ -54,8 +90,20 @@ public class CacheStatsSnapshot implements Serializable {
                 loadCount.get()+other.loadCount.get(),
                 totalLoadTime.get()+other.totalLoadTime.get(),
                 evictionCount.get()+other.evictionCount.get(),
+                sketchSampleCount.get()+other.sketchSampleCount.get(),
+                sketchAgingCount.get()+other.sketchAgingCount.get(),
+                coalescedWaitCount.get()+other.coalescedWaitCount.get(),
+                diskHitCount.get()+other.diskHitCount.get(),
+                diskSpillCount.get()+other.diskSpillCount.get(),
+                negativeHitCount.get()+other.negativeHitCount.get(),
+                collectedCount.get()+other.collectedCount.get(),
+                loadTimeHistogram.plus(other.loadTimeHistogram),
+                hitTimeHistogram.plus(other.hitTimeHistogram),
                 entries+other.entries,
-                estimatedMemoryUsage+other.estimatedMemoryUsage);
+                weight+other.weight,
+                arcTarget+other.arcTarget,
+                estimatedMemoryUsage+other.estimatedMemoryUsage,
+                estimatedMemoryMargin+other.estimatedMemoryMargin);
     }
     
     public CacheStatsSnapshot minus(CacheStatsSnapshot other) {
@@ -64,14 +112,43 @@ public class CacheStatsSnapshot implements Serializable {
                 loadCount.get()-other.loadCount.get(),
                 totalLoadTime.get()-other.totalLoadTime.get(),
                 evictionCount.get()-other.evictionCount.get(),
+                sketchSampleCount.get()-other.sketchSampleCount.get(),
+                sketchAgingCount.get()-other.sketchAgingCount.get(),
+                coalescedWaitCount.get()-other.coalescedWaitCount.get(),
+                diskHitCount.get()-other.diskHitCount.get(),
+                diskSpillCount.get()-other.diskSpillCount.get(),
+                negativeHitCount.get()-other.negativeHitCount.get(),
+                collectedCount.get()-other.collectedCount.get(),
+                loadTimeHistogram.minus(other.loadTimeHistogram),
+                hitTimeHistogram.minus(other.hitTimeHistogram),
                 entries-other.entries,
-                estimatedMemoryUsage-other.estimatedMemoryUsage);
+                weight-other.weight,
+                arcTarget-other.arcTarget,
+                estimatedMemoryUsage-other.estimatedMemoryUsage,
+                estimatedMemoryMargin+other.estimatedMemoryMargin);
     }
 
     public int getEntries() {
         return entries;
     }
     
+    /**
+     * @return total weight of the cached entries, for weight bounded caches
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the size the recency list of an 
+     * {@link com.visural.common.cache.EvictionStrategy#ARC} cache is adapting 
+     * towards, out of `maxEntries`. Higher favours recently used entries, 
+     * lower favours frequently used ones. 0 for other strategies.
+     */
+    public int getArcTarget() {
+        return arcTarget;
+    }
+    
     public long getRequestCount() {
         return hitCount.get()+missCount.get();
     }
@@ -116,6 +193,48 @@ public class CacheStatsSnapshot implements Serializable {
         return totalLoadTime;
     }
 
+    public AtomicLong getSketchSampleCount() {
+        return sketchSampleCount;
+    }
+
+    public AtomicLong getSketchAgingCount() {
+        return sketchAgingCount;
+    }
+
+    public AtomicLong getCoalescedWaitCount() {
+        return coalescedWaitCount;
+    }
+
+    public AtomicLong getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    public AtomicLong getDiskSpillCount() {
+        return diskSpillCount;
+    }
+
+    public AtomicLong getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    public AtomicLong getCollectedCount() {
+        return collectedCount;
+    }
+
+    /**
+     * @return distribution of load times (nanoseconds)
+     */
+    public HistogramSnapshot getLoadTimeHistogram() {
+        return loadTimeHistogram;
+    }
+
+    /**
+     * @return distribution of the time taken to look up hits (nanoseconds)
+     */
+    public HistogramSnapshot getHitTimeHistogram() {
+        return hitTimeHistogram;
+    }
+
     public int getEstimatedMemoryUsageBytes() {
         return estimatedMemoryUsage;
     }
@@ -124,6 +243,18 @@ public class CacheStatsSnapshot implements Serializable {
         return StringUtil.formatDecimal((double)estimatedMemoryUsage/(1024d*1024d), 2)+" MB";
     }
 
+    /**
+     * @return half width of the 95% confidence interval of the sampled 
+     * memory estimate, in bytes
+     */
+    public int getEstimatedMemoryMarginBytes() {
+        return estimatedMemoryMargin;
+    }
+
+    public String getEstimatedMemoryMarginMB() {
+        return StringUtil.formatDecimal((double)estimatedMemoryMargin/(1024d*1024d), 2)+" MB";
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -134,7 +265,19 @@ public class CacheStatsSnapshot implements Serializable {
         sb.append("totalLoadTime = ").append(totalLoadTime).append('\n');
         sb.append("averageLoadTime = ").append(getAverageLoadTimeNanos()).append('\n');
         sb.append("evictionCount = ").append(evictionCount).append('\n');
+        sb.append("sketchSampleCount = ").append(sketchSampleCount).append('\n');
+        sb.append("sketchAgingCount = ").append(sketchAgingCount).append('\n');
+        sb.append("coalescedWaitCount = ").append(coalescedWaitCount).append('\n');
+        sb.append("diskHitCount = ").append(diskHitCount).append('\n');
+        sb.append("diskSpillCount = ").append(diskSpillCount).append('\n');
+        sb.append("negativeHitCount = ").append(negativeHitCount).append('\n');
+        sb.append("collectedCount = ").append(collectedCount).append('\n');
+        sb.append("loadTime = ").append(loadTimeHistogram).append('\n');
+        sb.append("hitTime = ").append(hitTimeHistogram).append('\n');
+        sb.append("weight = ").append(weight).append('\n');
+        sb.append("arcTarget = ").append(arcTarget).append('\n');
         sb.append("estimatedMemoryUsage = ").append(estimatedMemoryUsage).append("\n");
+        sb.append("estimatedMemoryMargin = ").append(estimatedMemoryMargin).append("\n");
         return sb.toString();
     }
         
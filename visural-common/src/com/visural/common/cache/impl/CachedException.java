@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.io.Serializable;
+
+/**
+ * Cached result for a call which threw one of the exceptions listed in
+ * {@link com.visural.common.cache.Cache#cacheExceptions()}. A hit rethrows it.
+ *
+ * @author Richard Nichols
+ */
+public class CachedException implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final Throwable exception;
+
+    public CachedException(Throwable exception) {
+        this.exception = exception;
+    }
+
+    public Throwable getException() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedException[" + exception + "]";
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.cache.KeyIgnore;
+import com.visural.common.cache.MethodCall;
+import com.visural.common.cache.ObjectKeyProvider;
+import com.visural.common.cache.WithCacheId;
+import java.io.Serializable;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Key provider which wraps the arguments in a small composite key object,
+ * rather than building a string. The hash code is computed once from the 
+ * arguments' own hash codes and equality compares the arguments directly 
+ * (arrays by content).
+ * 
+ * Parameters marked {@link KeyIgnore} are skipped, and arguments implementing
+ * {@link WithCacheId} are keyed by their cache id. So that a key can't change
+ * once cached, only immutable value types (strings, boxed primitives, 
+ * BigInteger, BigDecimal, enums and classes) are held as they are. Arrays are 
+ * copied, and any other argument is keyed by its toString(), as with 
+ * {@link StandardKeyProvider}.
+ * 
+ * When every argument is a value type and none is ignored, which is the 
+ * common case, a lookup allocates just the key, which holds the call's 
+ * argument array. Otherwise it also allocates a copy of the arguments, plus
+ * the copies and strings above.
+ * 
+ * Not the default - override `CacheModule.getKeyProvider` to use it.
+ *
+ * @author Richard Nichols
+ */
+public class CompositeKeyProvider implements ObjectKeyProvider {
+
+    private static final ConcurrentHashMap<Method, boolean[]> ignoredParameters = new ConcurrentHashMap<Method, boolean[]>();
+    private static final Set<Class<?>> valueTypes = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            String.class, Integer.class, Long.class, Short.class, Byte.class, Double.class, Float.class, 
+            Character.class, Boolean.class, BigInteger.class, BigDecimal.class, Class.class));
+
+    public Object getKeyObject(MethodCall methodCall) {
+        return new Key(methodCall.getArguments(), getIgnoredParameters(methodCall.getMethod()));
+    }
+
+    public String getKey(MethodCall methodCall) {
+        return getKeyObject(methodCall).toString();
+    }
+
+    /**
+     * @param method
+     * @return flags for the parameters of the method annotated with {@link KeyIgnore},
+     * computed once per method
+     */
+    static boolean[] getIgnoredParameters(Method method) {
+        boolean[] ignored = ignoredParameters.get(method);
+        if (ignored == null) {
+            Annotation[][] pas = method.getParameterAnnotations();
+            ignored = new boolean[pas.length];
+            for (int n = 0; n < pas.length; n++) {
+                for (Annotation a : pas[n]) {
+                    if (KeyIgnore.class.isAssignableFrom(a.annotationType())) {
+                        ignored[n] = true;
+                    }
+                }
+            }
+            ignoredParameters.put(method, ignored);
+        }
+        return ignored;
+    }
+
+    /**
+     * Composite key over a method call's arguments.
+     */
+    public static class Key implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        
+        private final Object[] args;
+        private final boolean[] ignored;
+        private final int hash;
+
+        Key(Object[] args, boolean[] ignored) {
+            if (isValues(args, ignored)) {
+                // the call's own array, which holds nothing that can change
+                int h = 1;
+                for (Object o : args) {
+                    h = 31 * h + hashOf(o);
+                }
+                this.args = args;
+                this.hash = h;
+            } else {
+                // never holds the caller's array, or anything it could mutate
+                Object[] copy = new Object[args.length];
+                int h = 1;
+                for (int n = 0; n < args.length; n++) {
+                    if (ignored[n]) {
+                        continue;
+                    }
+                    Object o = args[n];
+                    copy[n] = o = o instanceof WithCacheId ? ((WithCacheId) o).__cacheId() : snapshot(o);
+                    h = 31 * h + hashOf(o);
+                }
+                this.args = copy;
+                this.hash = h;
+            }
+            this.ignored = ignored;
+        }
+
+        private static boolean isValues(Object[] args, boolean[] ignored) {
+            for (int n = 0; n < args.length; n++) {
+                if (ignored[n] || !isValue(args[n])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isValue(Object o) {
+            return o == null || o instanceof Enum || valueTypes.contains(o.getClass());
+        }
+
+        private static Object snapshot(Object o) {
+            if (isValue(o)) {
+                return o;
+            } else if (o instanceof Object[]) {
+                Object[] a = (Object[]) o;
+                Object[] copy = new Object[a.length];
+                for (int n = 0; n < a.length; n++) {
+                    copy[n] = snapshot(a[n]);
+                }
+                return copy;
+            } else if (o.getClass().isArray()) {
+                int length = Array.getLength(o);
+                Object copy = Array.newInstance(o.getClass().getComponentType(), length);
+                System.arraycopy(o, 0, copy, 0, length);
+                return copy;
+            } else {
+                return o.toString();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            if (hash != other.hash || args.length != other.args.length) {
+                return false;
+            }
+            for (int n = 0; n < args.length; n++) {
+                if (ignored[n] != other.ignored[n]) {
+                    return false;
+                }
+                if (!ignored[n] && !equalsOf(args[n], other.args[n])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int n = 0; n < args.length; n++) {
+                if (!ignored[n]) {
+                    sb.append("~~");
+                    if (args[n] != null) {
+                        sb.append(args[n].getClass().isArray() ? Arrays.deepToString(new Object[] {args[n]}) : args[n].toString());
+                    }
+                }
+            }
+            return sb.toString();
+        }
+
+        private static int hashOf(Object o) {
+            if (o == null) {
+                return 0;
+            } else if (o instanceof Object[]) {
+                return Arrays.deepHashCode((Object[]) o);
+            } else if (o.getClass().isArray()) {
+                if (o instanceof int[]) {
+                    return Arrays.hashCode((int[]) o);
+                } else if (o instanceof long[]) {
+                    return Arrays.hashCode((long[]) o);
+                } else if (o instanceof byte[]) {
+                    return Arrays.hashCode((byte[]) o);
+                } else if (o instanceof char[]) {
+                    return Arrays.hashCode((char[]) o);
+                } else if (o instanceof short[]) {
+                    return Arrays.hashCode((short[]) o);
+                } else if (o instanceof boolean[]) {
+                    return Arrays.hashCode((boolean[]) o);
+                } else if (o instanceof float[]) {
+                    return Arrays.hashCode((float[]) o);
+                } else {
+                    return Arrays.hashCode((double[]) o);
+                }
+            } else {
+                return o.hashCode();
+            }
+        }
+
+        private static boolean equalsOf(Object a, Object b) {
+            if (a == b) {
+                return true;
+            } else if (a == null || b == null) {
+                return false;
+            } else if (a instanceof Object[] && b instanceof Object[]) {
+                return Arrays.deepEquals((Object[]) a, (Object[]) b);
+            } else if (a.getClass().isArray() && a.getClass() == b.getClass()) {
+                if (a instanceof int[]) {
+                    return Arrays.equals((int[]) a, (int[]) b);
+                } else if (a instanceof long[]) {
+                    return Arrays.equals((long[]) a, (long[]) b);
+                } else if (a instanceof byte[]) {
+                    return Arrays.equals((byte[]) a, (byte[]) b);
+                } else if (a instanceof char[]) {
+                    return Arrays.equals((char[]) a, (char[]) b);
+                } else if (a instanceof short[]) {
+                    return Arrays.equals((short[]) a, (short[]) b);
+                } else if (a instanceof boolean[]) {
+                    return Arrays.equals((boolean[]) a, (boolean[]) b);
+                } else if (a instanceof float[]) {
+                    return Arrays.equals((float[]) a, (float[]) b);
+                } else {
+                    return Arrays.equals((double[]) a, (double[]) b);
+                }
+            } else {
+                return a.equals(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.IOUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Second level store for entries evicted from a {@link MethodCache}, see 
+ * {@link com.visural.common.cache.Cache#overflowToDisk()}.
+ * 
+ * Values are serialized and appended to a memory mapped file, which is mapped 
+ * in segments of {@link #SEGMENT_SIZE} as it grows. The keys and the location
+ * of each value are held in an in-memory index. Removing an entry only drops 
+ * it from the index - once more than half of the file is dead space the live
+ * values are copied, one at a time, to a new file (compaction). Expired values
+ * are dropped rather than copied, and are purged from the index when the file
+ * is full. When the file can't grow past its maximum size new values are not
+ * stored.
+ * 
+ * The file is temporary and is deleted when the store is closed or the JVM 
+ * exits. All methods which change the store are synchronized, while 
+ * {@link #contains(Object)} is lock free.
+ *
+ * @author Richard Nichols
+ */
+public class DiskStore {
+
+    private static final Logger logger = Logger.getLogger(DiskStore.class.getName());
+    
+    public static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    // minimum time between scans for expired values while the file is full
+    private static final long PURGE_INTERVAL_MILLIS = 1000;
+
+    // files not yet deleted by their store, deleted at shutdown
+    private static final Set<File> openFiles = new HashSet<File>();
+    private static boolean shutdownHook = false;
+
+    private final File directory;
+    private final String name;
+    private final long maxBytes;
+    private final ClassLoader cl;
+    private final Map<Object, Record> index = new ConcurrentHashMap<Object, Record>();
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private File file = null;
+    private RandomAccessFile raf = null;
+    private long writePosition = 0;
+    private long liveBytes = 0;
+    private long lastPurge = 0;
+
+    /**
+     * @param directory directory in which to create the file
+     * @param name prefix of the file name
+     * @param maxBytes maximum size of the file
+     * @param cl class loader used to deserialize values
+     */
+    public DiskStore(File directory, String name, long maxBytes, ClassLoader cl) {
+        this.directory = directory;
+        this.name = name.replaceAll("[^A-Za-z0-9_.-]", "_");
+        this.maxBytes = maxBytes;
+        this.cl = cl;
+    }
+
+    /**
+     * Stores the value, replacing any value stored for the key.
+     * @return false if the value could not be stored
+     */
+    public synchronized boolean put(Object key, long created, int ttl, long timeCost, Serializable value) {
+        invalidate(key);
+        byte[] data;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            IOUtil.writeObject(bos, value);
+            data = bos.toByteArray();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Value can not be written to disk store", e);
+            return false;
+        }
+        if (data.length > SEGMENT_SIZE) {
+            return false;
+        }
+        try {
+            long position = allocate(data.length);
+            if (position < 0) {
+                return false;
+            }
+            MappedByteBuffer segment = segments.get((int) (position / SEGMENT_SIZE));
+            segment.position((int) (position % SEGMENT_SIZE));
+            segment.put(data);
+            index.put(key, new Record(position, data.length, created, ttl, timeCost));
+            liveBytes += data.length;
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to write to disk store "+file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the value for the key and returns it.
+     * @param key
+     * @return the entry, or null if there is no value stored for the key
+     */
+    public synchronized Entry remove(Object key) {
+        Record r = index.remove(key);
+        if (r == null) {
+            return null;
+        }
+        liveBytes -= r.length;
+        if (r.isExpired()) {
+            return null;
+        }
+        try {
+            return new Entry(r, read(r));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read from disk store "+file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops the value for the key, without reading it.
+     * @param key 
+     */
+    public synchronized void invalidate(Object key) {
+        Record r = index.remove(key);
+        if (r != null) {
+            liveBytes -= r.length;
+        }
+    }
+
+    /**
+     * Checks the index without taking the store's lock, so that misses 
+     * don't contend with writes.
+     * @param key
+     * @return whether a value may be stored for the key
+     */
+    public boolean contains(Object key) {
+        return index.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Drops all values and deletes the file.
+     */
+    public synchronized void clear() {
+        index.clear();
+        liveBytes = 0;
+        closeFile();
+    }
+
+    private long allocate(int length) throws IOException {
+        if (length > SEGMENT_SIZE - writePosition % SEGMENT_SIZE) {
+            // records don't span segments
+            writePosition = (writePosition / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        }
+        if (writePosition + length > maxBytes) {
+            purgeExpired();
+            if (liveBytes >= writePosition / 2) {
+                return -1;
+            }
+            compact();
+            return writePosition + length > maxBytes ? -1 : allocate(length);
+        }
+        if (writePosition > 2 * SEGMENT_SIZE && liveBytes < writePosition / 2) {
+            compact();
+        }
+        return append(length);
+    }
+
+    /**
+     * Reserves space at the end of the file, creating and mapping it as needed.
+     */
+    private long append(int length) throws IOException {
+        if (length > SEGMENT_SIZE - writePosition % SEGMENT_SIZE) {
+            writePosition = (writePosition / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        }
+        if (writePosition + length > maxBytes) {
+            return -1;
+        }
+        if (file == null) {
+            directory.mkdirs();
+            file = File.createTempFile(name, ".cache", directory);
+            registerFile(file);
+            raf = new RandomAccessFile(file, "rw");
+        }
+        int segment = (int) (writePosition / SEGMENT_SIZE);
+        while (segments.size() <= segment) {
+            segments.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+        }
+        long position = writePosition;
+        writePosition += length;
+        return position;
+    }
+
+    private byte[] read(Record r) throws IOException {
+        MappedByteBuffer segment = segments.get((int) (r.position / SEGMENT_SIZE));
+        segment.position((int) (r.position % SEGMENT_SIZE));
+        byte[] data = new byte[r.length];
+        segment.get(data);
+        return data;
+    }
+
+    /**
+     * Drops expired values from the index, at most once per 
+     * {@link #PURGE_INTERVAL_MILLIS}.
+     */
+    private void purgeExpired() {
+        long now = TimerWheel.now();
+        if (now - lastPurge < PURGE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPurge = now;
+        for (Iterator<Record> it = index.values().iterator(); it.hasNext();) {
+            Record r = it.next();
+            if (r.isExpired()) {
+                it.remove();
+                liveBytes -= r.length;
+            }
+        }
+    }
+
+    /**
+     * Copies the live values into a new file, directly between the mapped
+     * segments, dropping those which have expired. If copying fails the store
+     * is emptied.
+     */
+    private void compact() throws IOException {
+        List<MappedByteBuffer> oldSegments = new ArrayList<MappedByteBuffer>(segments);
+        RandomAccessFile oldRaf = raf;
+        File oldFile = file;
+        segments.clear();
+        writePosition = 0;
+        liveBytes = 0;
+        raf = null;
+        file = null;
+        boolean copied = false;
+        try {
+            for (Iterator<Map.Entry<Object, Record>> it = index.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Object, Record> e = it.next();
+                Record r = e.getValue();
+                long position = r.isExpired() ? -1 : append(r.length);
+                if (position < 0) {
+                    it.remove();
+                    continue;
+                }
+                ByteBuffer from = oldSegments.get((int) (r.position / SEGMENT_SIZE)).duplicate();
+                from.position((int) (r.position % SEGMENT_SIZE));
+                from.limit((int) (r.position % SEGMENT_SIZE) + r.length);
+                ByteBuffer to = segments.get((int) (position / SEGMENT_SIZE)).duplicate();
+                to.position((int) (position % SEGMENT_SIZE));
+                to.put(from);
+                e.setValue(new Record(position, r.length, r.created, r.ttl, r.timeCost));
+                liveBytes += r.length;
+            }
+            copied = true;
+        } finally {
+            close(oldRaf, oldFile);
+            if (!copied) {
+                // records not yet copied point into the deleted file
+                index.clear();
+                closeFile();
+            }
+        }
+    }
+
+    private void closeFile() {
+        segments.clear();
+        writePosition = 0;
+        liveBytes = 0;
+        close(raf, file);
+        raf = null;
+        file = null;
+    }
+
+    private static void close(RandomAccessFile raf, File file) {
+        if (raf == null) {
+            return;
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to close disk store "+file, e);
+        }
+        if (!file.delete()) {
+            logger.log(Level.FINE, "Unable to delete disk store {0}", file);
+        }
+        synchronized (openFiles) {
+            openFiles.remove(file);
+        }
+    }
+
+    /**
+     * Deletes the file at shutdown if it is still open. Unlike 
+     * File.deleteOnExit, the file is forgotten once its store deletes it.
+     */
+    private static void registerFile(File file) {
+        synchronized (openFiles) {
+            openFiles.add(file);
+            if (!shutdownHook) {
+                shutdownHook = true;
+                Runtime.getRuntime().addShutdownHook(new Thread("cache-disk-store-cleanup") {
+                    @Override
+                    public void run() {
+                        synchronized (openFiles) {
+                            for (File f : openFiles) {
+                                f.delete();
+                            }
+                            openFiles.clear();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Location and metadata of a stored value.
+     */
+    private static class Record {
+        private final long position;
+        private final int length;
+        private final long created;
+        private final int ttl;
+        private final long timeCost;
+
+        Record(long position, int length, long created, int ttl, long timeCost) {
+            this.position = position;
+            this.length = length;
+            this.created = created;
+            this.ttl = ttl;
+            this.timeCost = timeCost;
+        }
+
+        boolean isExpired() {
+            return ttl > 0 && TimerWheel.now() > created + ttl;
+        }
+    }
+
+    /**
+     * A value read back from the store.
+     */
+    public class Entry {
+        private final Record record;
+        private final byte[] data;
+
+        Entry(Record record, byte[] data) {
+            this.record = record;
+            this.data = data;
+        }
+
+        public long getCreated() {
+            return record.created;
+        }
+
+        public int getTtl() {
+            return record.ttl;
+        }
+
+        public long getTimeCost() {
+            return record.timeCost;
+        }
+
+        public boolean isExpired() {
+            return record.isExpired();
+        }
+
+        /**
+         * @return the deserialized value
+         * @throws IOException 
+         */
+        public Object getValue() throws IOException {
+            return IOUtil.readObject(Serializable.class, cl, new ByteArrayInputStream(data));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+/**
+ * Keeps track of the order in which a {@link MethodCache} should evict its
+ * entries.
+ * 
+ * Implementations are not thread safe. {@link MethodCache} only calls them
+ * while holding its eviction lock, and reports reads lazily via a
+ * {@link ReadBuffer}, so `onAccess` may be called for an entry which has
+ * already been removed and must ignore it.
+ *
+ * @author Richard Nichols
+ */
+public interface EvictionPolicy {
+
+    /**
+     * A new entry was added to the cache.
+     * @param entry 
+     */
+    void onAdd(CacheEntry entry);
+
+    /**
+     * An entry was read from the cache.
+     * @param entry 
+     */
+    void onAccess(CacheEntry entry);
+
+    /**
+     * The time cost of an entry changed, e.g. when an asynchronous load completes.
+     * @param entry 
+     */
+    void onUpdate(CacheEntry entry);
+
+    /**
+     * An entry was removed from the cache by something other than eviction
+     * (invalidation, expiry, replacement).
+     * @param entry 
+     */
+    void onRemove(CacheEntry entry);
+
+    /**
+     * Selects the next entry to evict and forgets it.
+     * @return the victim, or null if the policy holds no entries
+     */
+    CacheEntry evict();
+
+    /**
+     * Forget all entries.
+     */
+    void clear();
+
+    /**
+     * @return whether this policy cares about reads at all. If not, the
+     * {@link MethodCache} does not need to record them.
+     */
+    boolean isAccessOrdered();
+}
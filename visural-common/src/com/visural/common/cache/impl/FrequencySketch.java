@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+/**
+ * A count-min sketch of 4 bit counters, used by the W-TinyLFU policy to
+ * estimate how often a key has been requested recently in constant space.
+ * 
+ * Each long holds 16 counters and each key maps to 4 counters (one per hash
+ * function). The estimated frequency is the minimum of the 4. Once the number
+ * of recorded samples reaches 10x the table width, all counters are halved so
+ * that stale popularity ages out.
+ * 
+ * Not thread safe.
+ *
+ * @author Richard Nichols
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final CacheStats stats;
+    private int size = 0;
+
+    public FrequencySketch(int expectedEntries, CacheStats stats) {
+        int length = 16;
+        while (length < expectedEntries && length < MAX_TABLE_SIZE) {
+            length <<= 1;
+        }
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+        this.stats = stats;
+    }
+
+    /**
+     * Records a request for the key with the given hash code.
+     * @param hashCode 
+     */
+    public void increment(int hashCode) {
+        int h = spread(hashCode);
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(h, i), offsetOf(h, i));
+        }
+        if (added) {
+            stats.getSketchSampleCount().incrementAndGet();
+            if (++size >= sampleSize) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * @param hashCode
+     * @return estimated number of recent requests for the key (0-15)
+     */
+    public int frequency(int hashCode) {
+        int h = spread(hashCode);
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int count = (int) ((table[indexOf(h, i)] >>> offsetOf(h, i)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = size >>> 1;
+        stats.getSketchAgingCount().incrementAndGet();
+    }
+
+    private int indexOf(int h, int i) {
+        long hash = (h + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return (int) hash & tableMask;
+    }
+
+    private static int offsetOf(int h, int i) {
+        // each of the 4 hash functions uses a different nibble of h to pick
+        // one of the 16 counters in the long
+        return ((h >>> (i << 3)) & 0xf) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the heaviest keys of a {@link MethodCache}, by number of requests and
+ * by total load time, using the Space-Saving algorithm. Each summary keeps a
+ * fixed number of counters in a min-heap; a new key takes over the smallest
+ * counter, inheriting its count as the error bound. Counts are halved every 
+ * {@link #DECAY_INTERVAL_MILLIS} so that the report follows recent traffic.
+ * 
+ * Threads record into summaries striped by thread id, which are merged for 
+ * the report, so the read path doesn't contend on a shared lock. Recording 
+ * never blocks - a record which finds its stripe busy is dropped, which is 
+ * fine for the approximate counts reported. Keys are held as strings, so the
+ * tracker doesn't keep key objects (e.g. argument arrays) reachable.
+ *
+ * @author Richard Nichols
+ */
+public class HeavyHitters {
+
+    public static final long DECAY_INTERVAL_MILLIS = 60000;
+    // counters kept per reported key, for accuracy of the top keys
+    private static final int COUNTERS_PER_KEY = 4;
+    
+    private final int topN;
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * @param topN number of keys to report
+     */
+    public HeavyHitters(int topN) {
+        if (topN <= 0) {
+            throw new IllegalArgumentException("topN must be > 0");
+        }
+        this.topN = topN;
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors()) {
+            n <<= 1;
+        }
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe(topN * COUNTERS_PER_KEY);
+        }
+        mask = n - 1;
+    }
+
+    public void recordRequest(Object key) {
+        record(false, key, 1);
+    }
+
+    /**
+     * @param key
+     * @param timeCost load time in nanoseconds
+     */
+    public void recordLoad(Object key, long timeCost) {
+        record(true, key, Math.max(0, timeCost));
+    }
+
+    private void record(boolean load, Object key, long weight) {
+        Stripe s = stripes[(int) Thread.currentThread().getId() & mask];
+        if (!s.lock.tryLock()) {
+            return;
+        }
+        try {
+            long now = TimerWheel.now();
+            if (now >= s.nextDecay) {
+                s.requests.decay();
+                s.loadTime.decay();
+                s.nextDecay = now + DECAY_INTERVAL_MILLIS;
+            }
+            (load ? s.loadTime : s.requests).add(String.valueOf(key), weight);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current top keys
+     */
+    public HotKeys report() {
+        int capacity = topN * COUNTERS_PER_KEY;
+        HotKeys all = new HotKeys(capacity, new ArrayList<HotKeys.HotKey>(), new ArrayList<HotKeys.HotKey>());
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                // all of the counters, so that keys are summed across stripes before taking the top
+                all = all.plus(new HotKeys(capacity, s.requests.top(capacity), s.loadTime.top(capacity)));
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return new HotKeys(topN, head(all.getByRequests()), head(all.getByLoadTime()));
+    }
+
+    private List<HotKeys.HotKey> head(List<HotKeys.HotKey> keys) {
+        return new ArrayList<HotKeys.HotKey>(keys.subList(0, Math.min(topN, keys.size())));
+    }
+
+    public int getTopN() {
+        return topN;
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Summary requests;
+        final Summary loadTime;
+        long nextDecay;
+
+        Stripe(int capacity) {
+            requests = new Summary(capacity);
+            loadTime = new Summary(capacity);
+            nextDecay = TimerWheel.now() + DECAY_INTERVAL_MILLIS;
+        }
+    }
+
+    private static class Counter {
+        String key;
+        long count;
+        long error;
+        int index;
+    }
+
+    private static class Summary {
+        private final Map<String, Counter> counters = new HashMap<String, Counter>();
+        private final Counter[] heap;
+        private int size = 0;
+
+        Summary(int capacity) {
+            heap = new Counter[capacity];
+        }
+
+        void add(String key, long weight) {
+            Counter c = counters.get(key);
+            if (c != null) {
+                c.count += weight;
+                siftDown(c.index);
+            } else if (size < heap.length) {
+                c = new Counter();
+                c.key = key;
+                c.count = weight;
+                c.index = size;
+                heap[size++] = c;
+                counters.put(key, c);
+                siftUp(c.index);
+            } else {
+                // replace the smallest, which over-counts the new key by at most its count
+                c = heap[0];
+                counters.remove(c.key);
+                c.key = key;
+                c.error = c.count;
+                c.count += weight;
+                counters.put(key, c);
+                siftDown(0);
+            }
+        }
+
+        void decay() {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                Counter c = heap[i];
+                c.count >>= 1;
+                c.error >>= 1;
+                if (c.count > 0) {
+                    c.index = n;
+                    heap[n++] = c;
+                } else {
+                    counters.remove(c.key);
+                }
+            }
+            Arrays.fill(heap, n, size, null);
+            size = n;
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        List<HotKeys.HotKey> top(int n) {
+            List<Counter> sorted = new ArrayList<Counter>(counters.values());
+            Collections.sort(sorted, new Comparator<Counter>() {
+                public int compare(Counter a, Counter b) {
+                    return a.count < b.count ? 1 : (a.count > b.count ? -1 : 0);
+                }
+            });
+            List<HotKeys.HotKey> result = new ArrayList<HotKeys.HotKey>();
+            for (int i = 0; i < n && i < sorted.size(); i++) {
+                Counter c = sorted.get(i);
+                result.add(new HotKeys.HotKey(c.key, c.count, c.error));
+            }
+            return result;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heap[parent].count <= heap[i].count) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int l = 2 * i + 1;
+                int r = l + 1;
+                if (l < size && heap[l].count < heap[smallest].count) {
+                    smallest = l;
+                }
+                if (r < size && heap[r].count < heap[smallest].count) {
+                    smallest = r;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            Counter c = heap[a];
+            heap[a] = heap[b];
+            heap[b] = c;
+            heap[a].index = a;
+            heap[b].index = b;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.io.Serializable;
+
+/**
+ * Immutable copy of a {@link LatencyHistogram}, which can be merged with 
+ * snapshots of other histograms and queried for percentiles.
+ *
+ * @author Richard Nichols
+ */
+public class HistogramSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final long[] counts;
+    private final long total;
+
+    HistogramSnapshot(long[] counts) {
+        this.counts = counts;
+        long t = 0;
+        for (long c : counts) {
+            t += c;
+        }
+        this.total = t;
+    }
+
+    public HistogramSnapshot() {
+        this(new long[LatencyHistogram.BUCKETS]);
+    }
+
+    public HistogramSnapshot plus(HistogramSnapshot other) {
+        long[] result = new long[counts.length];
+        for (int n = 0; n < counts.length; n++) {
+            result[n] = counts[n] + other.counts[n];
+        }
+        return new HistogramSnapshot(result);
+    }
+
+    public HistogramSnapshot minus(HistogramSnapshot other) {
+        long[] result = new long[counts.length];
+        for (int n = 0; n < counts.length; n++) {
+            result[n] = counts[n] - other.counts[n];
+        }
+        return new HistogramSnapshot(result);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return total;
+    }
+
+    long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99.9
+     * @return the value (in nanoseconds) at or below which the given 
+     * percentage of the values fall, to within the bucket resolution. 0 if 
+     * there are no values.
+     */
+    public long getPercentile(double percentile) {
+        if (total <= 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100d);
+        long seen = 0;
+        for (int n = 0; n < counts.length; n++) {
+            seen += counts[n];
+            if (seen >= target && seen > 0) {
+                return LatencyHistogram.upperBoundOf(n);
+            }
+        }
+        return LatencyHistogram.upperBoundOf(counts.length - 1);
+    }
+
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    public long getP999() {
+        return getPercentile(99.9);
+    }
+
+    @Override
+    public String toString() {
+        return "p50=" + getP50() + " p99=" + getP99() + " p999=" + getP999();
+    }
+}
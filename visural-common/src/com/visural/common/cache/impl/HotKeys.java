@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable report of the heaviest keys of a cached method, by number of 
+ * requests and by total load time. Counts are approximate, each over-counted
+ * by at most its error.
+ *
+ * @author Richard Nichols
+ */
+public class HotKeys implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int topN;
+    private final List<HotKey> byRequests;
+    private final List<HotKey> byLoadTime;
+
+    public HotKeys(int topN, List<HotKey> byRequests, List<HotKey> byLoadTime) {
+        this.topN = topN;
+        this.byRequests = Collections.unmodifiableList(byRequests);
+        this.byLoadTime = Collections.unmodifiableList(byLoadTime);
+    }
+
+    /**
+     * @return the most requested keys, most first
+     */
+    public List<HotKey> getByRequests() {
+        return byRequests;
+    }
+
+    /**
+     * @return the keys with the highest total load time (nanoseconds), 
+     * highest first
+     */
+    public List<HotKey> getByLoadTime() {
+        return byLoadTime;
+    }
+
+    public int getTopN() {
+        return topN;
+    }
+
+    /**
+     * Combines the reports of two instances of the same method, summing the 
+     * counts of keys in both.
+     * @param other
+     * @return 
+     */
+    public HotKeys plus(HotKeys other) {
+        int n = Math.max(topN, other.topN);
+        return new HotKeys(n, merge(byRequests, other.byRequests, n), merge(byLoadTime, other.byLoadTime, n));
+    }
+
+    private static List<HotKey> merge(List<HotKey> a, List<HotKey> b, int n) {
+        Map<String, HotKey> merged = new LinkedHashMap<String, HotKey>();
+        for (HotKey k : a) {
+            merged.put(k.getKey(), k);
+        }
+        for (HotKey k : b) {
+            HotKey existing = merged.get(k.getKey());
+            merged.put(k.getKey(), existing == null ? k 
+                    : new HotKey(k.getKey(), existing.getCount() + k.getCount(), existing.getError() + k.getError()));
+        }
+        List<HotKey> result = new ArrayList<HotKey>(merged.values());
+        Collections.sort(result, new Comparator<HotKey>() {
+            public int compare(HotKey x, HotKey y) {
+                return x.getCount() < y.getCount() ? 1 : (x.getCount() > y.getCount() ? -1 : 0);
+            }
+        });
+        return result.size() > n ? new ArrayList<HotKey>(result.subList(0, n)) : result;
+    }
+
+    @Override
+    public String toString() {
+        return "requests="+byRequests+", loadTime="+byLoadTime;
+    }
+
+    public static class HotKey implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final long count;
+        private final long error;
+
+        public HotKey(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * @return the cache key, as a string
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the maximum amount by which the count is over-stated
+         */
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return key+"="+count;
+        }
+    }
+}
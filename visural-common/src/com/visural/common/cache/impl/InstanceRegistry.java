@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.EqualsWeakReference;
+import com.visural.common.cache.Cacheable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent weak set of the {@link Cacheable} instances which have called a
+ * cached method, for the {@link CacheInterceptor}. Instances which are 
+ * garbage collected are removed via a reference queue, whenever an instance 
+ * is registered or the instances are read.
+ *
+ * @author Richard Nichols
+ */
+public class InstanceRegistry {
+
+    private final ConcurrentHashMap<EqualsWeakReference<Cacheable>, Boolean> instances = 
+            new ConcurrentHashMap<EqualsWeakReference<Cacheable>, Boolean>();
+    private final ReferenceQueue<Cacheable> collected = new ReferenceQueue<Cacheable>();
+
+    public void register(Cacheable cacheable) {
+        expunge();
+        instances.put(new EqualsWeakReference<Cacheable>(cacheable, collected), Boolean.TRUE);
+    }
+
+    /**
+     * @return the registered instances which have not been garbage collected
+     */
+    public List<Cacheable> getInstances() {
+        expunge();
+        List<Cacheable> result = new ArrayList<Cacheable>(instances.size());
+        for (EqualsWeakReference<Cacheable> ref : instances.keySet()) {
+            Cacheable c = ref.get();
+            if (c != null) {
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the instances which have been garbage collected.
+     */
+    public void expunge() {
+        Reference<? extends Cacheable> ref;
+        while ((ref = collected.poll()) != null) {
+            instances.remove(ref);
+        }
+    }
+
+    public int size() {
+        return instances.size();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.cache.Cache;
+import com.visural.common.cache.Cacheable;
+import com.visural.common.cache.InvalidationTransport;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Broadcasts local cache invalidations to peer nodes over an 
+ * {@link InvalidationTransport}, and applies the invalidations received from
+ * them.
+ * 
+ * Invalidations are queued and sent in batches by a background thread every
+ * {@link #FLUSH_MILLIS}, so the caller never waits on the network. Received
+ * invalidations are applied on the transport's thread, to the singleton 
+ * caches and the tracked instance caches, and are not broadcast again. Cache
+ * reads are lock free, so applying them never blocks a hit.
+ * 
+ * Messages are plain strings, never serialized objects, so a peer can't 
+ * cause arbitrary classes to be loaded. An invalidation names the method and
+ * carries the key if it is a string, as from the default 
+ * {@link com.visural.common.cache.KeyProvider}. Otherwise (e.g. for an 
+ * {@link com.visural.common.cache.ObjectKeyProvider}), or if the key is too 
+ * long, all values of the method are invalidated instead. Tag invalidations 
+ * carry just the tag, and are applied to every cache.
+ *
+ * @author Richard Nichols
+ */
+public class InvalidationBus implements InvalidationTransport.Receiver {
+
+    private static final Logger logger = Logger.getLogger(InvalidationBus.class.getName());
+    
+    public static final long FLUSH_MILLIS = 20;
+    private static final int MAX_BATCH = 1000;
+    // in place of the declaring class for tag invalidations, no class has this name
+    private static final String TAG = "";
+    
+    private final CacheInterceptor interceptor;
+    private final InvalidationTransport transport;
+    private final long nodeId = new Random().nextLong();
+    private final ConcurrentLinkedQueue<Invalidation> outgoing = new ConcurrentLinkedQueue<Invalidation>();
+    private final ConcurrentHashMap<String, Method> methods = new ConcurrentHashMap<String, Method>();
+    private ScheduledExecutorService flusher = null;
+
+    public InvalidationBus(CacheInterceptor interceptor, InvalidationTransport transport) {
+        this.interceptor = interceptor;
+        this.transport = transport;
+    }
+
+    public synchronized void start() throws IOException {
+        transport.start(this);
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache-invalidation-flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Error sending cache invalidations", t);
+                }
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends any queued invalidations and stops the transport.
+     */
+    public synchronized void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+            try {
+                flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error sending cache invalidations", e);
+            }
+            transport.stop();
+        }
+    }
+
+    /**
+     * Queues an invalidation to be sent to peers.
+     * @param method
+     * @param key key of the invalidated value, or null for all values of the method
+     */
+    public void publish(Method method, Object key) {
+        outgoing.add(new Invalidation(method.getDeclaringClass().getName(), method.toString(), 
+                key instanceof String ? (String) key : null));
+    }
+
+    /**
+     * Queues an invalidation of a tag to be sent to peers.
+     * @param tag 
+     */
+    public void publishTag(String tag) {
+        outgoing.add(new Invalidation(TAG, tag, null));
+    }
+
+    void flush() throws IOException {
+        List<Invalidation> batch = new ArrayList<Invalidation>();
+        Invalidation i;
+        while ((i = outgoing.poll()) != null) {
+            batch.add(i);
+            if (batch.size() == MAX_BATCH) {
+                send(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private void send(List<Invalidation> batch) throws IOException {
+        byte[] message;
+        try {
+            message = encode(batch);
+        } catch (IOException e) {
+            message = null; // a key which is too long to encode
+        }
+        if (message == null || message.length > transport.getMaxMessageSize()) {
+            if (batch.size() > 1) {
+                send(batch.subList(0, batch.size() / 2));
+                send(batch.subList(batch.size() / 2, batch.size()));
+                return;
+            }
+            Invalidation i = batch.get(0);
+            if (i.key == null) {
+                logger.log(Level.WARNING, "Unable to send cache invalidation for {0}", i.method);
+                return;
+            }
+            List<Invalidation> all = new ArrayList<Invalidation>();
+            all.add(new Invalidation(i.declaringClass, i.method, null));
+            send(all);
+            return;
+        }
+        transport.send(message);
+    }
+
+    private byte[] encode(List<Invalidation> batch) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeLong(nodeId);
+        out.writeInt(batch.size());
+        for (Invalidation i : batch) {
+            out.writeUTF(i.declaringClass);
+            out.writeUTF(i.method);
+            out.writeBoolean(i.key != null);
+            if (i.key != null) {
+                out.writeUTF(i.key);
+            }
+        }
+        out.close();
+        return bos.toByteArray();
+    }
+
+    public void receive(byte[] message) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            if (in.readLong() == nodeId) {
+                return; // our own message
+            }
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                String declaringClass = in.readUTF();
+                String methodString = in.readUTF();
+                String key = in.readBoolean() ? in.readUTF() : null;
+                try {
+                    if (TAG.equals(declaringClass)) {
+                        applyTag(methodString);
+                        continue;
+                    }
+                    Method method = resolve(declaringClass, methodString);
+                    if (method != null) {
+                        apply(method, key);
+                    }
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Unable to apply cache invalidation for "+methodString, e);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read cache invalidations", e);
+        }
+    }
+
+    private void apply(Method method, Object key) {
+        Cache annot = method.getAnnotation(Cache.class);
+        if (annot.singletonCache()) {
+            interceptor.singletonCache.invalidateLocal(method, key);
+        } else {
+            for (Cacheable c : interceptor.getInstances()) {
+                if (method.getDeclaringClass().isInstance(c)) {
+                    ((CacheDataImpl) c.__cacheData()).invalidateLocal(method, key);
+                }
+            }
+        }
+    }
+
+    private void applyTag(String tag) {
+        interceptor.singletonCache.invalidateTagLocal(tag);
+        for (Cacheable c : interceptor.getInstances()) {
+            ((CacheDataImpl) c.__cacheData()).invalidateTagLocal(tag);
+        }
+    }
+
+    private Method resolve(String declaringClass, String methodString) {
+        Method method = methods.get(methodString);
+        if (method == null) {
+            try {
+                ClassLoader cl = Thread.currentThread().getContextClassLoader();
+                Class<?> clazz = Class.forName(declaringClass, false, cl != null ? cl : InvalidationBus.class.getClassLoader());
+                for (Method m : clazz.getDeclaredMethods()) {
+                    if (m.toString().equals(methodString) && m.getAnnotation(Cache.class) != null) {
+                        method = m;
+                        methods.put(methodString, m);
+                    }
+                }
+            } catch (ClassNotFoundException e) {
+                logger.log(Level.FINE, "Ignoring invalidation for unknown class {0}", declaringClass);
+            } catch (LinkageError e) {
+                logger.log(Level.FINE, "Ignoring invalidation for unloadable class {0}", declaringClass);
+            }
+        }
+        return method;
+    }
+
+    private static class Invalidation {
+        private final String declaringClass;
+        private final String method;
+        private final String key;
+
+        Invalidation(String declaringClass, String method, String key) {
+            this.declaringClass = declaringClass;
+            this.method = method;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds, in a fixed amount of memory.
+ * 
+ * Values below 16 have a bucket each. Above that each power of two range is
+ * split into 8 linear sub-buckets, so a value is placed in a bucket no more
+ * than 12.5% wider than itself. Recording is a single atomic increment.
+ * Negative values are clamped to zero.
+ *
+ * @author Richard Nichols
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(nanos));
+    }
+
+    /**
+     * Adds the counts of a snapshot to this histogram.
+     * @param snapshot 
+     */
+    public void add(HistogramSnapshot snapshot) {
+        for (int n = 0; n < BUCKETS; n++) {
+            long c = snapshot.getCount(n);
+            if (c != 0) {
+                counts.addAndGet(n, c);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the current counts. Not atomic with respect to 
+     * concurrent recording.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int n = 0; n < BUCKETS; n++) {
+            copy[n] = counts.get(n);
+        }
+        return new HistogramSnapshot(copy);
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (msb - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param index
+     * @return the highest value which falls in the bucket
+     */
+    static long upperBoundOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int msb = (index - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (msb - SUB_BITS);
+        return lower + (1L << (msb - SUB_BITS)) - 1;
+    }
+}
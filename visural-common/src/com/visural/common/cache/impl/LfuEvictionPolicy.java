@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Constant time Least Frequently Used eviction policy, for
+ * {@link com.visural.common.cache.EvictionStrategy#LFU}.
+ * 
+ * Entries are kept in buckets of equal use count, and the buckets are kept in
+ * a doubly linked list in ascending order of use count. An access moves the
+ * entry into the neighbouring bucket, and the victim is the oldest entry in
+ * the first bucket, so neither depends on the number of entries. The entry
+ * added last is passed over while there are others, as it has had no chance
+ * to be used yet and would otherwise always be the victim.
+ *
+ * @author Richard Nichols
+ */
+public class LfuEvictionPolicy implements EvictionPolicy {
+
+    private final Map<CacheEntry, Bucket> index = new HashMap<CacheEntry, Bucket>();
+    private Bucket head = null;
+    private CacheEntry newest = null;
+
+    public void onAdd(CacheEntry entry) {
+        if (head == null || head.uses != 1) {
+            head = insertAfter(null, 1);
+        }
+        head.entries.add(entry);
+        index.put(entry, head);
+        newest = entry;
+    }
+
+    public void onAccess(CacheEntry entry) {
+        Bucket current = index.get(entry);
+        if (current == null) {
+            return;
+        }
+        Bucket next = current.next;
+        if (next == null || next.uses != current.uses + 1) {
+            next = insertAfter(current, current.uses + 1);
+        }
+        next.entries.add(entry);
+        index.put(entry, next);
+        removeFrom(current, entry);
+    }
+
+    public void onUpdate(CacheEntry entry) {
+        // order doesn't depend on time cost
+    }
+
+    public void onRemove(CacheEntry entry) {
+        Bucket current = index.remove(entry);
+        if (current != null) {
+            removeFrom(current, entry);
+        }
+        if (entry == newest) {
+            newest = null;
+        }
+    }
+
+    public CacheEntry evict() {
+        if (head == null) {
+            return null;
+        }
+        // buckets are insertion ordered, so ties fall back to FIFO
+        Iterator<CacheEntry> i = head.entries.iterator();
+        CacheEntry victim = i.next();
+        if (victim == newest) {
+            if (i.hasNext()) {
+                victim = i.next();
+            } else if (head.next != null) {
+                victim = head.next.entries.iterator().next();
+            }
+        }
+        Bucket b = index.remove(victim);
+        removeFrom(b, victim);
+        if (victim == newest) {
+            newest = null;
+        }
+        return victim;
+    }
+
+    public void clear() {
+        index.clear();
+        head = null;
+        newest = null;
+    }
+
+    public boolean isAccessOrdered() {
+        return true;
+    }
+
+    private Bucket insertAfter(Bucket prev, long uses) {
+        Bucket b = new Bucket(uses);
+        b.prev = prev;
+        if (prev == null) {
+            b.next = head;
+            head = b;
+        } else {
+            b.next = prev.next;
+            prev.next = b;
+        }
+        if (b.next != null) {
+            b.next.prev = b;
+        }
+        return b;
+    }
+
+    private void removeFrom(Bucket b, CacheEntry entry) {
+        b.entries.remove(entry);
+        if (b.entries.isEmpty()) {
+            if (b.prev == null) {
+                head = b.next;
+            } else {
+                b.prev.next = b.next;
+            }
+            if (b.next != null) {
+                b.next.prev = b.prev;
+            }
+        }
+    }
+
+    private static class Bucket {
+
+        private final long uses;
+        private final LinkedHashSet<CacheEntry> entries = new LinkedHashSet<CacheEntry>();
+        private Bucket prev;
+        private Bucket next;
+
+        Bucket(long uses) {
+            this.uses = uses;
+        }
+    }
+}
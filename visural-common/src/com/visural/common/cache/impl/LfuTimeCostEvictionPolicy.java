@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Approximate, constant time eviction policy for
+ * {@link com.visural.common.cache.EvictionStrategy#LFU_TIMECOST}.
+ * 
+ * The value of an entry, (timecost+1)*#uses, grows by arbitrary amounts on
+ * each access so it can't be kept in an exactly sorted structure cheaply.
+ * Instead entries are bucketed by the power of two of their value (64 buckets
+ * cover every possible long), and the victim is the oldest entry of the lowest
+ * non-empty bucket. The evicted entry is therefore within a factor of two of
+ * the least valuable one. The entry added last is only evicted when there is
+ * no other, since it hasn't yet had a chance to be used.
+ *
+ * @author Richard Nichols
+ */
+public class LfuTimeCostEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashSet<CacheEntry>[] buckets = newBuckets(64);
+    private final Map<CacheEntry, Integer> index = new HashMap<CacheEntry, Integer>();
+    private CacheEntry newest = null;
+
+    @SuppressWarnings("unchecked")
+    private static LinkedHashSet<CacheEntry>[] newBuckets(int n) {
+        return (LinkedHashSet<CacheEntry>[]) new LinkedHashSet<?>[n];
+    }
+
+    public LfuTimeCostEvictionPolicy() {
+        for (int n = 0; n < buckets.length; n++) {
+            buckets[n] = new LinkedHashSet<CacheEntry>();
+        }
+    }
+
+    public void onAdd(CacheEntry entry) {
+        int b = bucketOf(entry);
+        buckets[b].add(entry);
+        index.put(entry, b);
+        newest = entry;
+    }
+
+    public void onAccess(CacheEntry entry) {
+        rebucket(entry);
+    }
+
+    public void onUpdate(CacheEntry entry) {
+        rebucket(entry);
+    }
+
+    private void rebucket(CacheEntry entry) {
+        Integer current = index.get(entry);
+        if (current == null) {
+            return;
+        }
+        int b = bucketOf(entry);
+        if (b != current) {
+            buckets[current].remove(entry);
+            buckets[b].add(entry);
+            index.put(entry, b);
+        }
+    }
+
+    public void onRemove(CacheEntry entry) {
+        Integer current = index.remove(entry);
+        if (current != null) {
+            buckets[current].remove(entry);
+        }
+        if (entry == newest) {
+            newest = null;
+        }
+    }
+
+    public CacheEntry evict() {
+        for (LinkedHashSet<CacheEntry> bucket : buckets) {
+            for (Iterator<CacheEntry> i = bucket.iterator(); i.hasNext();) {
+                CacheEntry victim = i.next();
+                if (victim != newest) {
+                    i.remove();
+                    index.remove(victim);
+                    return victim;
+                }
+            }
+        }
+        if (newest != null) {
+            CacheEntry victim = newest;
+            onRemove(victim);
+            return victim;
+        }
+        return null;
+    }
+
+    public void clear() {
+        for (LinkedHashSet<CacheEntry> bucket : buckets) {
+            bucket.clear();
+        }
+        index.clear();
+        newest = null;
+    }
+
+    public boolean isAccessOrdered() {
+        return true;
+    }
+
+    private static int bucketOf(CacheEntry entry) {
+        long value = entry.getUsesByTimecost();
+        return value <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(value);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Eviction policy for {@link com.visural.common.cache.EvictionStrategy#LRU}
+ * and {@link com.visural.common.cache.EvictionStrategy#FIFO}. Both are a
+ * linked hash map, ordered by access or by insertion respectively.
+ *
+ * @author Richard Nichols
+ */
+public class LinkedEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<CacheEntry, CacheEntry> entries;
+    private final boolean accessOrder;
+
+    public LinkedEvictionPolicy(boolean accessOrder) {
+        this.accessOrder = accessOrder;
+        this.entries = new LinkedHashMap<CacheEntry, CacheEntry>(16, 0.75f, accessOrder);
+    }
+
+    public void onAdd(CacheEntry entry) {
+        entries.put(entry, entry);
+    }
+
+    public void onAccess(CacheEntry entry) {
+        if (accessOrder) {
+            // moves the entry to the tail, no effect if it has since been removed
+            entries.get(entry);
+        }
+    }
+
+    public void onUpdate(CacheEntry entry) {
+        // order doesn't depend on time cost
+    }
+
+    public void onRemove(CacheEntry entry) {
+        entries.remove(entry);
+    }
+
+    public CacheEntry evict() {
+        Iterator<CacheEntry> i = entries.keySet().iterator();
+        if (!i.hasNext()) {
+            return null;
+        }
+        CacheEntry victim = i.next();
+        i.remove();
+        return victim;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public boolean isAccessOrdered() {
+        return accessOrder;
+    }
+}
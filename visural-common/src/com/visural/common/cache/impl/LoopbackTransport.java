@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.cache.InvalidationTransport;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process {@link InvalidationTransport}, which delivers messages to all 
+ * other transports started on the same channel name. Intended for tests.
+ *
+ * @author Richard Nichols
+ */
+public class LoopbackTransport implements InvalidationTransport {
+
+    private static final Map<String, List<LoopbackTransport>> channels = new ConcurrentHashMap<String, List<LoopbackTransport>>();
+    
+    private final String channel;
+    private volatile Receiver receiver = null;
+
+    public LoopbackTransport(String channel) {
+        this.channel = channel;
+    }
+
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        synchronized (channels) {
+            List<LoopbackTransport> peers = channels.get(channel);
+            if (peers == null) {
+                peers = new CopyOnWriteArrayList<LoopbackTransport>();
+                channels.put(channel, peers);
+            }
+            peers.add(this);
+        }
+    }
+
+    public void send(byte[] message) {
+        List<LoopbackTransport> peers = channels.get(channel);
+        if (peers != null) {
+            for (LoopbackTransport peer : peers) {
+                Receiver r = peer.receiver;
+                if (peer != this && r != null) {
+                    r.receive(message.clone());
+                }
+            }
+        }
+    }
+
+    public int getMaxMessageSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    public void stop() {
+        receiver = null;
+        synchronized (channels) {
+            List<LoopbackTransport> peers = channels.get(channel);
+            if (peers != null) {
+                peers.remove(this);
+                if (peers.isEmpty()) {
+                    channels.remove(channel);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.ObjectSize;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Estimates the memory used by a cache from a random sample of its entries,
+ * rather than walking the whole object graph.
+ * 
+ * A reservoir sample is taken in a single pass over the entries, then each
+ * sampled key and result is measured with {@link ObjectSize} until the time 
+ * budget runs out. The total is extrapolated from the mean, with a 95% 
+ * confidence interval. Objects shared between entries are counted once per 
+ * entry, and results held off heap are not counted.
+ * 
+ * Estimates requested via {@link #request()} run on a shared background 
+ * thread, and the last one is kept so that readers never wait.
+ *
+ * @author Richard Nichols
+ */
+public class MemoryEstimator {
+
+    private static final Logger logger = Logger.getLogger(MemoryEstimator.class.getName());
+    
+    public static final int SAMPLE_SIZE = 256;
+    public static final long TIME_BUDGET_MILLIS = 250;
+    public static final long MAX_AGE_MILLIS = 10000;
+    // approximate size of the CacheEntry, its map node, uses counter and timer
+    static final int ENTRY_OVERHEAD = 144;
+    private static final double Z_95 = 1.96;
+    
+    private static volatile ExecutorService executor = null;
+    
+    private final Collection<CacheEntry> entries;
+    private final String cacheName;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private volatile Estimate last = null;
+
+    public MemoryEstimator(Collection<CacheEntry> entries, String cacheName) {
+        this.entries = entries;
+        this.cacheName = cacheName;
+    }
+
+    /**
+     * @return the most recent estimate, or null if none has completed
+     */
+    public Estimate getLastEstimate() {
+        return last;
+    }
+
+    /**
+     * Starts a background estimate if the last one is older than 
+     * {@link #MAX_AGE_MILLIS} and none is running.
+     * @return the most recent estimate, or null if none has completed
+     */
+    public Estimate request() {
+        Estimate e = last;
+        if ((e == null || System.currentTimeMillis() - e.getTimestamp() > MAX_AGE_MILLIS) 
+                && running.compareAndSet(false, true)) {
+            cancelled = false;
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        Estimate result = estimate(SAMPLE_SIZE, TIME_BUDGET_MILLIS);
+                        if (result != null) {
+                            last = result;
+                        }
+                    } catch (Throwable t) {
+                        logger.log(Level.WARNING, "Unable to determine cache size for MethodCache -> "+cacheName, t);
+                    } finally {
+                        running.set(false);
+                    }
+                }
+            });
+        }
+        return e;
+    }
+
+    /**
+     * Stops a running background estimate, keeping the previous result.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Estimates on the calling thread.
+     * @param sampleSize maximum number of entries to measure
+     * @param budgetMillis time after which no more entries are measured
+     * @return the estimate, or null if cancelled
+     */
+    public Estimate estimate(int sampleSize, long budgetMillis) {
+        long deadline = System.currentTimeMillis() + budgetMillis;
+        Random random = new Random();
+        List<CacheEntry> sample = new ArrayList<CacheEntry>(Math.min(sampleSize, 1024));
+        int count = 0;
+        for (CacheEntry e : entries) {
+            if (count < sampleSize) {
+                sample.add(e);
+            } else {
+                int n = random.nextInt(count + 1);
+                if (n < sampleSize) {
+                    sample.set(n, e);
+                }
+            }
+            count++;
+            if ((count & 1023) == 0 && cancelled) {
+                return null;
+            }
+        }
+        double sum = 0;
+        double sumSquares = 0;
+        int measured = 0;
+        for (CacheEntry e : sample) {
+            if (cancelled) {
+                return null;
+            }
+            if (measured > 0 && System.currentTimeMillis() > deadline) {
+                break;
+            }
+            double size = measure(e);
+            sum += size;
+            sumSquares += size * size;
+            measured++;
+        }
+        if (measured == 0) {
+            return new Estimate(0, 0, 0, count);
+        }
+        double mean = sum / measured;
+        long bytes = Math.round(mean * count);
+        long margin = 0;
+        if (measured < count && measured > 1) {
+            double variance = Math.max(0, (sumSquares - measured * mean * mean) / (measured - 1));
+            // finite population correction, as entries are sampled without replacement
+            double fpc = Math.sqrt((double) (count - measured) / (count - 1));
+            margin = Math.round(Z_95 * count * Math.sqrt(variance / measured) * fpc);
+        } else if (measured < count) {
+            margin = bytes;
+        }
+        return new Estimate(bytes, margin, measured, count);
+    }
+
+    private static int measure(CacheEntry e) {
+        int size = ENTRY_OVERHEAD + ObjectSize.estimate(e.getKey());
+        if (e.getOffHeapHandle() == null) {
+            try {
+                Object result = e.getResult();
+                if (result != null) {
+                    size += ObjectSize.estimate(result);
+                }
+            } catch (IllegalStateException ex) {
+                // soft reference cleared
+            }
+        }
+        return size;
+    }
+
+    private static ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (MemoryEstimator.class) {
+                if (executor == null) {
+                    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "cache-memory-estimator");
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Result of a sampled estimate.
+     */
+    public static class Estimate {
+        private final long bytes;
+        private final long margin;
+        private final int sampled;
+        private final int entries;
+        private final long timestamp = System.currentTimeMillis();
+
+        Estimate(long bytes, long margin, int sampled, int entries) {
+            this.bytes = bytes;
+            this.margin = margin;
+            this.sampled = sampled;
+            this.entries = entries;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return half width of the 95% confidence interval, in bytes
+         */
+        public long getMargin() {
+            return margin;
+        }
+
+        public long getLowerBound() {
+            return Math.max(0, bytes - margin);
+        }
+
+        public long getUpperBound() {
+            return bytes + margin;
+        }
+
+        public int getSampled() {
+            return sampled;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return whether every entry was measured
+         */
+        public boolean isExact() {
+            return sampled == entries;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return bytes + " +/- " + margin + " bytes (" + sampled + " of " + entries + " entries)";
+        }
+    }
+}
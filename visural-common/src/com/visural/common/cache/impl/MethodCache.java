@@ -16,164 +16,700 @@
  */
 package com.visural.common.cache.impl;
 
-import com.visural.common.ObjectSize;
 import com.visural.common.cache.Cache;
-import com.visural.common.cache.EvictionStrategy;
 import com.visural.common.cache.KeyProvider;
 import com.visural.common.cache.MethodCall;
-import com.visural.common.datastruct.LRUCache;
-import java.lang.ref.SoftReference;
+import com.visural.common.cache.ObjectKeyProvider;
+import com.visural.common.cache.TagProvider;
+import com.visural.common.cache.Weigher;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Holds the cached results for a single method.
+ * 
+ * Reads are lock free - the entries live in a {@link ConcurrentHashMap} and
+ * accesses are recorded in a striped {@link ReadBuffer}, which is replayed
+ * into the {@link EvictionPolicy} whenever a thread manages to grab the
+ * eviction lock. Writes, invalidations and eviction take the eviction lock.
+ * 
+ * Entries with a time to live are also removed proactively once they expire,
+ * by the shared {@link TimerWheel}. Evicted entries may be spilled to a 
+ * {@link DiskStore}, which is checked on a miss.
+ */
 public class MethodCache {
 
     private static final Logger logger = Logger.getLogger(MethodCache.class.getName());
 
     private final String cacheName;
+    private final Method method;
     private final Cache settings;
-    private Map<String, CacheEntry> cache;
-    private PriorityQueue<CacheEntry> sortedEntries = null;
+    private final ConcurrentHashMap<Object, CacheEntry> cache = new ConcurrentHashMap<Object, CacheEntry>();
+    private final ConcurrentHashMap<Object, PendingLoad> loading = new ConcurrentHashMap<Object, PendingLoad>();
+    private final EvictionPolicy policy;
+    private final ReadBuffer<CacheEntry> readBuffer;
+    private final ReentrantLock evictionLock = new ReentrantLock();
     private final KeyProvider kp;
     private final CacheStats stats = new CacheStats();
+    private final Weigher weigher;
+    private final TagProvider tagProvider;
+    private final TagIndex tagIndex;
+    private final ClassLoader classLoader;
+    private final DiskStore diskStore;
+    private final MemoryEstimator memoryEstimator;
+    // soft values which have been garbage collected, null without softValues
+    private final ReferenceQueue<Object> collectedValues;
+    // null unless hot keys are tracked
+    private final HeavyHitters heavyHitters;
+    // total weight of the entries, only updated under the eviction lock
+    private volatile long weight = 0;
+    
+    private final ReadBuffer.Sink<CacheEntry> accessSink = new ReadBuffer.Sink<CacheEntry>() {
+        public void accept(CacheEntry e) {
+            policy.onAccess(e);
+        }
+    };
 
     public MethodCache(Cache settings, Method m, KeyProvider kp) {
+        this(settings, m, kp, null, DiskStore.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param settings
+     * @param m
+     * @param kp
+     * @param diskDirectory directory for the disk store, if the method uses 
+     * one. Defaults to the system temp directory if null.
+     * @param diskMaxBytes maximum size of the disk store
+     */
+    public MethodCache(Cache settings, Method m, KeyProvider kp, File diskDirectory, long diskMaxBytes) {
+        this(settings, m, kp, diskDirectory, diskMaxBytes, null);
+    }
+
+    /**
+     * @param settings
+     * @param m
+     * @param kp
+     * @param diskDirectory directory for the disk store, if the method uses 
+     * one. Defaults to the system temp directory if null.
+     * @param diskMaxBytes maximum size of the disk store
+     * @param tagIndex index to register the tags of entries with, or null if
+     * they are not indexed
+     */
+    public MethodCache(Cache settings, Method m, KeyProvider kp, File diskDirectory, long diskMaxBytes, TagIndex tagIndex) {
         this.cacheName = m.toString();
+        this.method = m;
         this.settings = settings;        
         if (settings.maxEntries() <= 0) {
             throw new IllegalArgumentException(String.format("Method '%s' has @Cache with maxEntries <= 0", m));            
         }
+        if (settings.exceptionTimeToLive() < -1 || settings.nullTimeToLive() < -1) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @Cache with exceptionTimeToLive or nullTimeToLive < -1", m));            
+        }
+        if (settings.refreshAfter() < 0 || (settings.refreshAfter() > 0 && settings.timeToLive() > 0 
+                && settings.refreshAfter() >= settings.timeToLive())) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @Cache with refreshAfter < 0 or >= timeToLive", m));            
+        }
+        int bulk = MethodRegistry.getInstance().resolve(m).getBulkParameter();
+        if (bulk >= 0 && (!Collection.class.isAssignableFrom(m.getParameterTypes()[bulk]) 
+                || !m.getReturnType().isAssignableFrom(LinkedHashMap.class))) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @CacheBulk on a parameter which is not a Collection, or does not return a Map", m));            
+        }
+        if (bulk >= 0 && CacheInterceptor.newCollection(m.getParameterTypes()[bulk]) == null) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @CacheBulk on a parameter which can't hold an ArrayList, LinkedHashSet or TreeSet", m));            
+        }
+        if (bulk >= 0 && (settings.refreshAfter() > 0 || settings.coalesceLoads())) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @CacheBulk with refreshAfter or coalesceLoads", m));            
+        }
+        if (settings.expireAfterAccess() < 0) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @Cache with expireAfterAccess < 0", m));            
+        }
+        if (settings.hotKeys() < 0) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @Cache with hotKeys < 0", m));            
+        }
         switch (settings.evictionStrategy()) {
             case FIFO:
-                sortedEntries = new PriorityQueue<CacheEntry>(11, new Comparator<CacheEntry>() {
-                    public int compare(CacheEntry o1, CacheEntry o2) {
-                        return Long.valueOf(o1.getCreated()).compareTo(o2.getCreated());
-                    }
-                }); 
-                cache = new HashMap();
+                policy = new LinkedEvictionPolicy(false);
                 break;
             case LFU:
-                sortedEntries = new PriorityQueue<CacheEntry>(11, new Comparator<CacheEntry>() {
-                    public int compare(CacheEntry o1, CacheEntry o2) {
-                        int result = Long.valueOf(o1.getUses()).compareTo(o2.getUses());
-                        if (result == 0) {
-                            // fallback to FIFO for same match
-                            result = Long.valueOf(o1.getCreated()).compareTo(o2.getCreated());
-                        } 
-                        return result;
-                    }
-                }); 
-                cache = new HashMap();
+                policy = new LfuEvictionPolicy();
                 break;
             case LFU_TIMECOST:
-                sortedEntries = new PriorityQueue<CacheEntry>(11, new Comparator<CacheEntry>() {
-                    public int compare(CacheEntry o1, CacheEntry o2) {
-                        int result = Long.valueOf(o1.getUsesByTimecost()).compareTo(o2.getUsesByTimecost());
-                        if (result == 0) {
-                            // fallback to FIFO for same match
-                            result = Long.valueOf(o1.getCreated()).compareTo(o2.getCreated());
-                        } 
-                        return result;
-                    }
-                }); 
-                cache = new HashMap();
+                policy = new LfuTimeCostEvictionPolicy();
                 break;
             case LRU:
-                cache = new LRUCache<String, CacheEntry>(settings.maxEntries()) {
-                    @Override
-                    protected boolean removeEldestEntry(Entry eldest) {
-                        boolean remove = super.removeEldestEntry(eldest);
-                        if (remove) {
-                            stats.getEvictionCount().incrementAndGet();
-                        }
-                        return remove;
-                    }                    
-                };
+                policy = new LinkedEvictionPolicy(true);
+                break;
+            case W_TINYLFU:
+                policy = new TinyLfuEvictionPolicy(settings.maxEntries(), stats);
+                break;
+            case ARC:
+                policy = new ArcEvictionPolicy(settings.maxEntries());
                 break;
             default:
                 throw new IllegalStateException("Should not happen.");
         }
+        if (settings.offHeap() && settings.softValues()) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @Cache with both offHeap and softValues", m));            
+        }
+        if (settings.maxWeight() < 0) {
+            throw new IllegalArgumentException(String.format("Method '%s' has @Cache with maxWeight < 0", m));            
+        } else if (settings.maxWeight() > 0) {
+            try {
+                weigher = settings.weigher().newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException(String.format("Method '%s' has @Cache with weigher which could not be created", m), e);
+            }
+        } else {
+            weigher = null;
+        }
+        if (tagIndex != null) {
+            try {
+                tagProvider = settings.tagProvider().newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException(String.format("Method '%s' has @Cache with tagProvider which could not be created", m), e);
+            }
+        } else {
+            tagProvider = null;
+        }
+        this.tagIndex = tagIndex;
+        classLoader = m.getDeclaringClass().getClassLoader();
+        if (settings.overflowToDisk()) {
+            diskStore = new DiskStore(diskDirectory != null ? diskDirectory : new File(System.getProperty("java.io.tmpdir")),
+                    m.getDeclaringClass().getSimpleName()+"."+m.getName()+"-", diskMaxBytes, classLoader);
+        } else {
+            diskStore = null;
+        }
+        readBuffer = policy.isAccessOrdered() ? new ReadBuffer<CacheEntry>() : null;
         this.kp = kp;
+        memoryEstimator = new MemoryEstimator(cache.values(), cacheName);
+        collectedValues = settings.softValues() ? new ReferenceQueue<Object>() : null;
+        heavyHitters = settings.hotKeys() > 0 ? new HeavyHitters(settings.hotKeys()) : null;
+    }
+
+    /**
+     * @param kp
+     * @param mc
+     * @return the cache key for the call, see {@link ObjectKeyProvider}
+     */
+    static Object keyOf(KeyProvider kp, MethodCall mc) {
+        return kp instanceof ObjectKeyProvider ? ((ObjectKeyProvider) kp).getKeyObject(mc) : kp.getKey(mc);
     }
 
     public CacheStats getStats() {
         return stats;
     }
     
+    /**
+     * @param estimateMemory whether to include the last memory estimate, 
+     * which starts a new estimate in the background if it is out of date. 
+     * Zero if no estimate has completed yet.
+     * @return 
+     */
     public CacheStatsSnapshot getStatsSnapshot(boolean estimateMemory) {
         int mem = 0;
+        int memMargin = 0;
         if (estimateMemory) {
-            try {
-                mem = ObjectSize.estimate(cache);
-            } catch (Throwable t) {
-                logger.log(Level.WARNING, "Unable to determine cache size for MethodCache -> "+cacheName, t);
+            MemoryEstimator.Estimate e = memoryEstimator.request();
+            if (e != null) {
+                mem = (int) Math.min(Integer.MAX_VALUE, e.getBytes());
+                memMargin = (int) Math.min(Integer.MAX_VALUE, e.getMargin());
             }
         }
-        return new CacheStatsSnapshot(stats, cache.size(), mem);
+        int arcTarget = policy instanceof ArcEvictionPolicy ? ((ArcEvictionPolicy) policy).getTarget() : 0;
+        return new CacheStatsSnapshot(stats, cache.size(), weight, arcTarget, mem, memMargin);
+    }
+
+    public MemoryEstimator getMemoryEstimator() {
+        return memoryEstimator;
+    }
+
+    /**
+     * @return the current heaviest keys, or null if hot keys are not tracked
+     */
+    public HotKeys getHotKeys() {
+        return heavyHitters != null ? heavyHitters.report() : null;
     }
 
     public Cache getSettings() {
         return settings;
     }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the entries currently cached in memory
+     */
+    public List<CacheEntry> getEntries() {
+        return new ArrayList<CacheEntry>(cache.values());
+    }
+
+    /**
+     * Adds previously cached entries, e.g. from a snapshot, skipping those 
+     * which have expired. Existing entries for the same keys are replaced.
+     * @param entries 
+     */
+    public void restore(List<CacheSnapshot.Entry> entries) {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            for (CacheSnapshot.Entry se : entries) {
+                if (se.isExpired()) {
+                    continue;
+                }
+                CacheEntry e = createEntry(se.getKey(), se.getCreated(), se.getTtl(), se.getTimeCost(), se.getResult());
+                e.setWeight(weigher != null ? se.getWeight() : 0);
+                e.setTags(tagIndex != null ? se.getTags() : null);
+                insert(e);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
     
     public CacheEntry get(MethodCall mc) {
-        String key = kp.getKey(mc);
+        long start = System.nanoTime();
+        Object key = keyOf(kp, mc);
+        if (heavyHitters != null) {
+            heavyHitters.recordRequest(key);
+        }
         CacheEntry c = cache.get(key);
         if (c != null) {
             if (c.isExpired()) {
-                invalidateCache(key);
+                if (invalidateCache(key, c) && c.isCollected()) {
+                    stats.getCollectedCount().incrementAndGet();
+                }
                 c = null;                
             } else {
-                c.incrementUses();                
-                if (sortedEntries != null && !settings.evictionStrategy().equals(EvictionStrategy.FIFO)) {
-                    synchronized(this) {
-                        sortedEntries.remove(c);
-                        sortedEntries.add(c);
-                    }
-                }                
+                c.incrementUses();
+                c.touch();
+                if (readBuffer != null && readBuffer.offer(c)) {
+                    tryDrainReadBuffer();
+                }
             }
         }
+        if (c == null && diskStore != null && diskStore.contains(key)) {
+            c = promote(key, mc);
+        }
         if (c == null) {
             stats.getMissCount().incrementAndGet();
         } else {
             stats.getHitCount().incrementAndGet();
+            if (c.isNegative()) {
+                stats.getNegativeHitCount().incrementAndGet();
+            }
+            stats.getHitTimeHistogram().record(System.nanoTime() - start);
         }
         return c;
     }
     
-    public synchronized void put(long created, long timeCost, MethodCall methodCall, Object result) {
-        String key = kp.getKey(methodCall);
-        CacheEntry e = settings.softValues() ? 
-                new CacheEntry(key, created, settings.timeToLive(), timeCost, new SoftReference(result)) :
-                new CacheEntry(key, created, settings.timeToLive(), timeCost, result);
-        cache.put(key, e);
+    /**
+     * @param mc
+     * @return the live entry in memory for the call, without counting a
+     * request or a use, or null
+     */
+    public CacheEntry peek(MethodCall mc) {
+        CacheEntry c = cache.get(keyOf(kp, mc));
+        return c != null && !c.isExpired() ? c : null;
+    }
+    
+    public CacheEntry put(long created, long timeCost, MethodCall methodCall, Object result) {
+        Object key = keyOf(kp, methodCall);
+        int ttl = settings.timeToLive();
+        if (result == null && settings.nullTimeToLive() >= 0) {
+            ttl = settings.nullTimeToLive();
+        } else if (result instanceof CachedException && settings.exceptionTimeToLive() >= 0) {
+            ttl = settings.exceptionTimeToLive();
+        }
+        CacheEntry e = createEntry(key, created, ttl, timeCost, result);
+        if (weigher != null) {
+            e.setWeight(Math.max(0, weigher.weigh(methodCall, result)));
+        }
+        e.setTags(getTags(methodCall, result));
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            insert(e);
+        } finally {
+            evictionLock.unlock();
+        }
         stats.getLoadCount().incrementAndGet();
         stats.getTotalLoadTime().addAndGet(e.getTimeCost());
-        if (sortedEntries != null) {
-            if (sortedEntries.size() >= settings.maxEntries()) {
-                CacheEntry r = sortedEntries.poll();
-                cache.remove(r.getKey());
-                stats.getEvictionCount().incrementAndGet();
+        if (!(result instanceof Future)) {
+            // asynchronous loads are recorded once complete
+            stats.getLoadTimeHistogram().record(timeCost);
+            if (heavyHitters != null) {
+                heavyHitters.recordLoad(key, timeCost);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Called when the Future cached in the entry completes.
+     * @param entry
+     * @param timeCost time from the call until completion
+     * @param failed whether the Future failed or was cancelled, in which case
+     * the entry is removed
+     */
+    public void asyncCompleted(CacheEntry entry, long timeCost, boolean failed) {
+        evictionLock.lock();
+        try {
+            if (failed) {
+                invalidateCache(entry.getKey(), entry);
+            } else if (cache.get(entry.getKey()) == entry) {
+                stats.getTotalLoadTime().addAndGet(timeCost - entry.getTimeCost());
+                entry.setTimeCost(timeCost);
+                stats.getLoadTimeHistogram().record(timeCost);
+                if (heavyHitters != null) {
+                    heavyHitters.recordLoad(entry.getKey(), timeCost);
+                }
+                policy.onUpdate(entry);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry if it is still cached.
+     * @param entry 
+     */
+    public void remove(CacheEntry entry) {
+        invalidateCache(entry.getKey(), entry);
+    }
+
+    private CacheEntry createEntry(Object key, long created, long ttl, long timeCost, Object result) {
+        CacheEntry e = newEntry(key, created, ttl, timeCost, result);
+        if (settings.expireAfterAccess() > 0) {
+            e.setExpireAfterAccess(settings.expireAfterAccess());
+        }
+        return e;
+    }
+
+    private CacheEntry newEntry(Object key, long created, long ttl, long timeCost, Object result) {
+        if (result == null || result instanceof CachedException) {
+            // negative results are small and short lived, always held directly
+            return new CacheEntry(key, created, ttl, timeCost, result);
+        }
+        CacheEntry e = null;
+        if (settings.offHeap() && result instanceof Serializable) {
+            try {
+                // null if the store is full, in which case the result stays on the heap
+                OffHeapStore.Handle h = OffHeapStore.getInstance().put((Serializable) result, classLoader);
+                if (h != null) {
+                    e = new CacheEntry(key, created, ttl, timeCost, h);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Unable to store result off heap for MethodCache -> "+cacheName, ex);
+            }
+        }
+        if (e == null) {
+            if (settings.softValues()) {
+                SoftValue value = new SoftValue(result, collectedValues);
+                e = new CacheEntry(key, created, ttl, timeCost, value);
+                value.setEntry(e);
+            } else {
+                e = new CacheEntry(key, created, ttl, timeCost, result);
             }
-            sortedEntries.add(e);
         }
+        return e;
+    }
+
+    private String[] getTags(MethodCall methodCall, Object result) {
+        if (tagProvider == null) {
+            return null;
+        }
+        Collection<String> tags = tagProvider.getTags(methodCall, result);
+        return tags == null || tags.isEmpty() ? null : tags.toArray(new String[tags.size()]);
+    }
+
+    /**
+     * Adds the entry and evicts down to the bounds. Called under the eviction lock.
+     */
+    private void insert(CacheEntry e) {
+        CacheEntry old = cache.put(e.getKey(), e);
+        if (old != null) {
+            policy.onRemove(old);
+            removed(old);
+        }
+        policy.onAdd(e);
+        weight += e.getWeight();
+        if (e.getTags() != null) {
+            tagIndex.add(e.getTags(), this, e.getKey());
+        }
+        if (e.getTtl() > 0 || e.getExpireAfterAccess() > 0) {
+            ExpiryTimer timer = new ExpiryTimer(this, e);
+            e.setTimer(timer);
+            TimerWheel.getInstance().schedule(timer);
+        }
+        while (cache.size() > settings.maxEntries() || (weigher != null && weight > settings.maxWeight())) {
+            CacheEntry victim = policy.evict();
+            if (victim == null) {
+                break;
+            }
+            cache.remove(victim.getKey());
+            // entries on disk stay indexed, so their tags still invalidate them
+            removed(victim, diskStore != null && spill(victim));
+            stats.getEvictionCount().incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes an evicted entry to the disk store. Called under the eviction lock.
+     */
+    private boolean spill(CacheEntry victim) {
+        if (victim.isExpired()) {
+            return false;
+        }
+        Object result;
+        try {
+            result = victim.getResult();
+        } catch (Throwable t) {
+            return false; // soft reference cleared or off heap value released
+        }
+        if (result instanceof Serializable && diskStore.put(victim.getKey(), victim.getCreated(), 
+                victim.getTtl(), victim.getTimeCost(), (Serializable) result)) {
+            stats.getDiskSpillCount().incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves an entry from the disk store back into memory.
+     * @return the entry, or null if it is not on disk
+     */
+    private CacheEntry promote(Object key, MethodCall mc) {
+        evictionLock.lock();
+        try {
+            CacheEntry c = cache.get(key);
+            if (c != null) {
+                return c; // loaded concurrently
+            }
+            DiskStore.Entry d = diskStore.remove(key);
+            if (d == null || d.isExpired()) {
+                return null;
+            }
+            Object result = d.getValue();
+            c = createEntry(key, d.getCreated(), d.getTtl(), d.getTimeCost(), result);
+            if (weigher != null) {
+                c.setWeight(Math.max(0, weigher.weigh(mc, result)));
+            }
+            c.setTags(getTags(mc, result));
+            drainReadBuffer();
+            insert(c);
+            stats.getDiskHitCount().incrementAndGet();
+            return c;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unable to read disk store for MethodCache -> "+cacheName, e);
+            return null;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+    
+    /**
+     * Registers the calling thread as the loader for the given call, unless
+     * another thread is already loading it.
+     * @param methodCall
+     * @return a load owned by the caller (see {@link PendingLoad#isOwner()}),
+     * or the load already in progress
+     */
+    public PendingLoad beginLoad(MethodCall methodCall) {
+        Object key = keyOf(kp, methodCall);
+        PendingLoad load = new PendingLoad(key);
+        PendingLoad existing = loading.putIfAbsent(key, load);
+        if (existing != null) {
+            stats.getCoalescedWaitCount().incrementAndGet();
+            return existing;
+        }
+        return load;
+    }
+
+    /**
+     * Called by the owner once the load is complete (and the result is 
+     * cached) or has failed.
+     * @param load 
+     */
+    public void endLoad(PendingLoad load) {
+        loading.remove(load.getKey(), load);
     }
     
     public void invalidateCache(MethodCall methodCall) {
-        invalidateCache(kp.getKey(methodCall));
+        invalidateKey(keyOf(kp, methodCall));
+    }
+
+    /**
+     * Invalidates the cached value for a key produced by the {@link KeyProvider}.
+     * @param key 
+     */
+    public void invalidateKey(Object key) {
+        evictionLock.lock();
+        try {
+            CacheEntry c = cache.remove(key);
+            if (c != null) {
+                policy.onRemove(c);
+                removed(c);
+            }
+            if (diskStore != null) {
+                diskStore.invalidate(key);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
     }    
     
-    private synchronized void invalidateCache(String key) {
-        cache.remove(key);
+    /**
+     * Removes the entry only if it is still the one mapped to the key.
+     */
+    private boolean invalidateCache(Object key, CacheEntry entry) {
+        evictionLock.lock();
+        try {
+            if (cache.remove(key, entry)) {
+                policy.onRemove(entry);
+                removed(entry);
+                return true;
+            }
+            return false;
+        } finally {
+            evictionLock.unlock();
+        }
     }
     
     public void invalidateCache() {
-        cache.clear();
-    }    
+        evictionLock.lock();
+        try {
+            for (CacheEntry e : cache.values()) {
+                removed(e);
+            }
+            cache.clear();
+            policy.clear();
+            memoryEstimator.cancel();
+            if (diskStore != null) {
+                diskStore.clear();
+                if (tagIndex != null) {
+                    tagIndex.remove(this);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the {@link TimerWheel} when the entry's expiry has passed.
+     * An entry read since the timer was placed is rescheduled instead.
+     * @param entry 
+     */
+    void expire(CacheEntry entry) {
+        if (entry.isExpired()) {
+            invalidateCache(entry.getKey(), entry);
+        } else if (entry.getTimer() != null && cache.get(entry.getKey()) == entry) {
+            TimerWheel.getInstance().schedule(entry.getTimer());
+        }
+    }
+
+    /**
+     * Releases anything held on behalf of an entry which has just been removed
+     * from the cache. Called under the eviction lock.
+     */
+    private void removed(CacheEntry entry) {
+        removed(entry, false);
+    }
+
+    /**
+     * @param entry
+     * @param onDisk whether the entry was moved to the disk store
+     */
+    private void removed(CacheEntry entry, boolean onDisk) {
+        weight -= entry.getWeight();
+        if (entry.getTags() != null && !onDisk) {
+            tagIndex.remove(entry.getTags(), this, entry.getKey());
+        }
+        if (entry.getTimer() != null) {
+            TimerWheel.getInstance().cancel(entry.getTimer());
+        }
+        if (entry.getOffHeapHandle() != null) {
+            OffHeapStore.getInstance().free(entry.getOffHeapHandle());
+        }
+    }
+
+    private void tryDrainReadBuffer() {
+        if (evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies buffered reads to the eviction policy and removes entries whose
+     * soft values have been collected. Called under the eviction lock.
+     */
+    private void drainReadBuffer() {
+        if (readBuffer != null) {
+            readBuffer.drainTo(accessSink);
+        }
+        if (collectedValues != null) {
+            Reference<?> ref;
+            while ((ref = collectedValues.poll()) != null) {
+                CacheEntry e = ((SoftValue) ref).getEntry();
+                if (e != null && cache.remove(e.getKey(), e)) {
+                    policy.onRemove(e);
+                    removed(e);
+                    stats.getCollectedCount().incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds the cache and entry weakly, so that the shared wheel doesn't keep
+     * an instance's caches (and the instance) reachable until its timers fire.
+     */
+    private static class ExpiryTimer extends TimerWheel.Timer {
+
+        private final WeakReference<MethodCache> cache;
+        private final WeakReference<CacheEntry> entry;
+
+        ExpiryTimer(MethodCache cache, CacheEntry entry) {
+            this.cache = new WeakReference<MethodCache>(cache);
+            this.entry = new WeakReference<CacheEntry>(entry);
+        }
+
+        @Override
+        public long getExpiry() {
+            CacheEntry e = entry.get();
+            // once collected, the timer does nothing when its bucket comes up
+            return e != null ? e.getExpiry() : 0;
+        }
+
+        @Override
+        public void expire() {
+            MethodCache c = cache.get();
+            CacheEntry e = entry.get();
+            if (c != null && e != null) {
+                c.expire(e);
+            }
+        }
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.cache.Cache;
+import com.visural.common.cache.CacheBulk;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves each cached {@link Method} once into a {@link Slot} holding its
+ * parsed {@link Cache} settings and name, so that calls don't repeat the 
+ * reflective lookups or <code>Method.toString()</code>.
+ * 
+ * Lookups are lock free and by identity, against a copy-on-write map which
+ * is replaced when a method is first seen. The interceptor sees the same
+ * Method object on every call, so it always takes that path. Equal copies 
+ * (e.g. from {@link com.visural.common.cache.MethodCall#get}) resolve to the
+ * same slot; a few of them are added to the identity map, after which they 
+ * are found by equality.
+ *
+ * @author Richard Nichols
+ */
+public class MethodRegistry {
+
+    private static final int MAX_ALIASES = 4;
+    private static final MethodRegistry instance = new MethodRegistry();
+    
+    private volatile Map<Method, Slot> byIdentity = new IdentityHashMap<Method, Slot>();
+    private final ConcurrentHashMap<Method, Slot> byEquality = new ConcurrentHashMap<Method, Slot>();
+
+    public static MethodRegistry getInstance() {
+        return instance;
+    }
+
+    public Slot resolve(Method method) {
+        Slot slot = byIdentity.get(method);
+        if (slot == null) {
+            slot = byEquality.get(method);
+            if (slot == null || slot.aliases < MAX_ALIASES) {
+                slot = register(method);
+            }
+        }
+        return slot;
+    }
+
+    private synchronized Slot register(Method method) {
+        Slot slot = byIdentity.get(method);
+        if (slot != null) {
+            return slot;
+        }
+        slot = byEquality.get(method);
+        if (slot == null) {
+            slot = new Slot(method, method.getAnnotation(Cache.class), method.toString());
+            byEquality.put(method, slot);
+        } else if (slot.aliases >= MAX_ALIASES) {
+            return slot;
+        }
+        slot.aliases++;
+        Map<Method, Slot> copy = new IdentityHashMap<Method, Slot>(byIdentity);
+        copy.put(method, slot);
+        byIdentity = copy;
+        return slot;
+    }
+
+    /**
+     * A cached method, resolved once.
+     */
+    public static class Slot {
+        private final Method method;
+        private final Cache settings;
+        private final String name;
+        private final int bulkParameter;
+        // identity map entries for this slot, guarded by the registry
+        private int aliases = 0;
+
+        Slot(Method method, Cache settings, String name) {
+            this.method = method;
+            this.settings = settings;
+            this.name = name;
+            this.bulkParameter = bulkParameterOf(method);
+        }
+
+        private static int bulkParameterOf(Method method) {
+            Annotation[][] annots = method.getParameterAnnotations();
+            for (int n = 0; n < annots.length; n++) {
+                for (Annotation a : annots[n]) {
+                    if (a instanceof CacheBulk) {
+                        return n;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the method's annotation, or null if it is not cached
+         */
+        public Cache getSettings() {
+            return settings;
+        }
+
+        /**
+         * @return <code>Method.toString()</code>
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return index of the parameter annotated {@link CacheBulk}, or -1
+         */
+        public int getBulkParameter() {
+            return bulkParameter;
+        }
+    }
+}
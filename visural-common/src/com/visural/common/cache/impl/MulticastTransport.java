@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.cache.InvalidationTransport;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link InvalidationTransport} which sends messages as UDP multicast 
+ * datagrams, so every node joined to the group receives them. Delivery is
+ * unreliable, so TTLs should still bound staleness.
+ *
+ * @author Richard Nichols
+ */
+public class MulticastTransport implements InvalidationTransport {
+
+    private static final Logger logger = Logger.getLogger(MulticastTransport.class.getName());
+    
+    // stay under the IPv4 UDP payload limit
+    private static final int MAX_MESSAGE_SIZE = 65000;
+    
+    private final InetAddress group;
+    private final int port;
+    private final int timeToLive;
+    private volatile MulticastSocket socket = null;
+
+    /**
+     * @param group multicast group address, e.g. "239.255.27.1"
+     * @param port
+     * @param timeToLive multicast TTL (number of router hops)
+     * @throws IOException 
+     */
+    public MulticastTransport(String group, int port, int timeToLive) throws IOException {
+        this.group = InetAddress.getByName(group);
+        this.port = port;
+        this.timeToLive = timeToLive;
+    }
+
+    public void start(final Receiver receiver) throws IOException {
+        final MulticastSocket s = new MulticastSocket(port);
+        s.setTimeToLive(timeToLive);
+        s.joinGroup(group);
+        socket = s;
+        Thread t = new Thread("cache-invalidation-multicast") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+                while (!s.isClosed()) {
+                    try {
+                        DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+                        s.receive(p);
+                        byte[] message = new byte[p.getLength()];
+                        System.arraycopy(p.getData(), p.getOffset(), message, 0, p.getLength());
+                        receiver.receive(message);
+                    } catch (IOException e) {
+                        if (!s.isClosed()) {
+                            logger.log(Level.WARNING, "Error receiving cache invalidations", e);
+                        }
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Error applying cache invalidations", e);
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void send(byte[] message) throws IOException {
+        MulticastSocket s = socket;
+        if (s == null) {
+            throw new IOException("Transport has not been started.");
+        }
+        s.send(new DatagramPacket(message, message.length, group, port));
+    }
+
+    public int getMaxMessageSize() {
+        return MAX_MESSAGE_SIZE;
+    }
+
+    public void stop() {
+        MulticastSocket s = socket;
+        socket = null;
+        if (s != null) {
+            try {
+                s.leaveGroup(group);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error leaving multicast group", e);
+            }
+            s.close();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.ObjectSize;
+import com.visural.common.cache.MethodCall;
+import com.visural.common.cache.Weigher;
+
+/**
+ * Default {@link Weigher}, which weighs results by their estimated size in 
+ * bytes, see {@link ObjectSize}.
+ * 
+ * @author Richard Nichols
+ */
+public class ObjectSizeWeigher implements Weigher {
+
+    public int weigh(MethodCall methodCall, Object result) {
+        return result == null ? 0 : ObjectSize.estimate(result);
+    }
+}
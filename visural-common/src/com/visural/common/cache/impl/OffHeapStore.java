@@ -0,0 +1,326 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.IOUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores serialized cache values outside the Java heap, in direct 
+ * {@link ByteBuffer} slabs shared by all caches, see {@link com.visural.common.cache.Cache#offHeap()}.
+ * 
+ * Slabs of {@link #SLAB_SIZE} are carved into power of two sized chunks, 
+ * from 64 bytes up to the slab size, and freed chunks are kept on a free list
+ * per size for reuse. Larger values get a buffer of their own. A slab whose
+ * chunks have all been freed is released, so memory fragmented between size 
+ * classes is returned once a slab drains.
+ * 
+ * The direct memory held is bounded by {@link #setMaxBytes(long)}. Once the
+ * limit is reached, or direct memory runs out, `put` returns null and the 
+ * caller keeps the value on the heap instead.
+ * 
+ * Each chunk starts with a stamp which is changed whenever the chunk is freed,
+ * so a reader racing with the removal of an entry detects that the chunk has
+ * been freed (and possibly reused) rather than returning another value.
+ *
+ * @author Richard Nichols
+ */
+public class OffHeapStore {
+
+    private static final Logger logger = Logger.getLogger(OffHeapStore.class.getName());
+
+    public static final int SLAB_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    
+    private static final int HEADER = 12; // stamp, length
+    private static final int MIN_CLASS = 6;
+    private static final int MAX_CLASS = 22;
+    
+    private static volatile OffHeapStore shared = null;
+    
+    // released slabs leave a null, so that the indexes of the others don't change
+    private final List<Slab> slabs = new ArrayList<Slab>();
+    private final long[][] free = new long[MAX_CLASS + 1][];
+    private final int[] freeCount = new int[MAX_CLASS + 1];
+    private Slab slab = null;
+    private int slabTop = 0;
+    private long nextStamp = 1;
+    private volatile long usedBytes = 0;
+    private volatile long reservedBytes = 0;
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * @return the store shared by all caches
+     */
+    public static OffHeapStore getInstance() {
+        if (shared == null) {
+            synchronized (OffHeapStore.class) {
+                if (shared == null) {
+                    shared = new OffHeapStore();
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Serializes the value into the store.
+     * @param value
+     * @param cl class loader used to deserialize the value
+     * @return a handle to the stored value, or null if the store is full
+     * @throws IOException if the value could not be serialized
+     */
+    public Handle put(Serializable value, ClassLoader cl) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        IOUtil.writeObject(bos, value);
+        byte[] data = bos.toByteArray();
+        Handle h = allocate(data.length, cl);
+        if (h == null) {
+            return null;
+        }
+        ByteBuffer b = h.buffer.duplicate();
+        b.position(h.offset + HEADER);
+        b.put(data);
+        return h;
+    }
+
+    /**
+     * Releases the chunk held by the handle. Concurrent reads of it will fail.
+     * @param h 
+     */
+    public synchronized void free(Handle h) {
+        if (h.buffer.getLong(h.offset) != h.stamp) {
+            return; // already freed
+        }
+        h.buffer.putLong(h.offset, 0);
+        usedBytes -= h.capacity();
+        if (h.sizeClass < 0) {
+            reservedBytes -= h.capacity();
+            return; // dedicated buffer, released by GC
+        }
+        Slab s = slabs.get(h.slabIndex);
+        if (--s.live == 0) {
+            if (s == slab) {
+                // start the current slab afresh rather than allocating another
+                dropFreeChunks(h.slabIndex);
+                slabTop = 0;
+            } else {
+                release(h.slabIndex);
+            }
+            return;
+        }
+        long[] list = free[h.sizeClass];
+        if (list == null || freeCount[h.sizeClass] == list.length) {
+            long[] grown = new long[list == null ? 16 : list.length * 2];
+            if (list != null) {
+                System.arraycopy(list, 0, grown, 0, list.length);
+            }
+            free[h.sizeClass] = list = grown;
+        }
+        list[freeCount[h.sizeClass]++] = ((long) h.slabIndex << 32) | h.offset;
+    }
+
+    private void release(int slabIndex) {
+        dropFreeChunks(slabIndex);
+        slabs.set(slabIndex, null);
+        reservedBytes -= SLAB_SIZE;
+    }
+
+    private void dropFreeChunks(int slabIndex) {
+        for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+            long[] list = free[c];
+            int n = 0;
+            for (int i = 0; i < freeCount[c]; i++) {
+                if ((int) (list[i] >>> 32) != slabIndex) {
+                    list[n++] = list[i];
+                }
+            }
+            freeCount[c] = n;
+        }
+    }
+
+    /**
+     * @return bytes held by live values (including chunk rounding)
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return bytes of direct memory allocated by the store
+     */
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes limit on the direct memory allocated by the store. 
+     * Values which don't fit are kept on the heap.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a new direct buffer, or null if it would exceed the limit or 
+     * direct memory is exhausted
+     */
+    private ByteBuffer allocateDirect(int size) {
+        if (reservedBytes + size > maxBytes) {
+            logger.log(Level.FINE, "Off heap store is full ({0} bytes)", reservedBytes);
+            return null;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.allocateDirect(size);
+            reservedBytes += size;
+            return b;
+        } catch (OutOfMemoryError e) {
+            logger.log(Level.WARNING, "Unable to allocate direct memory for the off heap store", e);
+            return null;
+        }
+    }
+
+    private synchronized Handle allocate(int length, ClassLoader cl) {
+        int size = length + HEADER;
+        int sizeClass = MIN_CLASS;
+        while (sizeClass <= MAX_CLASS && (1 << sizeClass) < size) {
+            sizeClass++;
+        }
+        ByteBuffer buffer;
+        int slabIndex;
+        int offset;
+        if (sizeClass > MAX_CLASS) {
+            buffer = allocateDirect(size);
+            if (buffer == null) {
+                return null;
+            }
+            sizeClass = -1;
+            slabIndex = -1;
+            offset = 0;
+        } else if (freeCount[sizeClass] > 0) {
+            long chunk = free[sizeClass][--freeCount[sizeClass]];
+            slabIndex = (int) (chunk >>> 32);
+            offset = (int) chunk;
+            Slab s = slabs.get(slabIndex);
+            s.live++;
+            buffer = s.buffer;
+        } else {
+            int chunkSize = 1 << sizeClass;
+            if (slab == null || slabTop + chunkSize > SLAB_SIZE) {
+                ByteBuffer b = allocateDirect(SLAB_SIZE);
+                if (b == null) {
+                    return null;
+                }
+                if (slab != null && slab.live == 0) {
+                    release(slab.index);
+                }
+                slab = new Slab(b, slabs.indexOf(null) >= 0 ? slabs.indexOf(null) : slabs.size());
+                if (slab.index < slabs.size()) {
+                    slabs.set(slab.index, slab);
+                } else {
+                    slabs.add(slab);
+                }
+                slabTop = 0;
+            }
+            slab.live++;
+            buffer = slab.buffer;
+            slabIndex = slab.index;
+            offset = slabTop;
+            slabTop += chunkSize;
+        }
+        long stamp = nextStamp++;
+        buffer.putLong(offset, stamp);
+        buffer.putInt(offset + 8, length);
+        Handle h = new Handle(buffer, slabIndex, offset, sizeClass, stamp, cl);
+        usedBytes += h.capacity();
+        return h;
+    }
+
+    private static class Slab {
+        
+        private final ByteBuffer buffer;
+        private final int index;
+        // chunks in use
+        private int live = 0;
+
+        Slab(ByteBuffer buffer, int index) {
+            this.buffer = buffer;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Reference to a value in the store.
+     */
+    public static class Handle {
+        
+        private final ByteBuffer buffer;
+        private final int slabIndex;
+        private final int offset;
+        private final int sizeClass;
+        private final long stamp;
+        private final ClassLoader cl;
+
+        Handle(ByteBuffer buffer, int slabIndex, int offset, int sizeClass, long stamp, ClassLoader cl) {
+            this.buffer = buffer;
+            this.slabIndex = slabIndex;
+            this.offset = offset;
+            this.sizeClass = sizeClass;
+            this.stamp = stamp;
+            this.cl = cl;
+        }
+
+        /**
+         * Deserializes the value.
+         * @return the value
+         * @throws IllegalStateException if the value has been freed
+         */
+        public Object read() {
+            if (buffer.getLong(offset) != stamp) {
+                throw new IllegalStateException("Off heap value has been released.");
+            }
+            ByteBuffer b = buffer.duplicate();
+            b.position(offset + 8);
+            byte[] data = new byte[b.getInt()];
+            b.get(data);
+            if (buffer.getLong(offset) != stamp) {
+                throw new IllegalStateException("Off heap value has been released.");
+            }
+            try {
+                return IOUtil.readObject(Serializable.class, cl, new ByteArrayInputStream(data));
+            } catch (IOException e) {
+                throw new IllegalStateException("Off heap value could not be read.", e);
+            }
+        }
+
+        int capacity() {
+            return sizeClass < 0 ? buffer.capacity() : 1 << sizeClass;
+        }
+    }
+}
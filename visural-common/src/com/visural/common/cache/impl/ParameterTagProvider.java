@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import com.visural.common.cache.CacheTag;
+import com.visural.common.cache.MethodCall;
+import com.visural.common.cache.TagProvider;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default {@link TagProvider}, which tags results with the arguments of
+ * parameters annotated with {@link CacheTag}.
+ * 
+ * @author Richard Nichols
+ */
+public class ParameterTagProvider implements TagProvider {
+
+    private static final String[] UNTAGGED = new String[0];
+    private static final ConcurrentHashMap<Method, String[]> tagNames = new ConcurrentHashMap<Method, String[]>();
+
+    public Collection<String> getTags(MethodCall methodCall, Object result) {
+        String[] names = getTagNames(methodCall.getMethod());
+        if (names == UNTAGGED) {
+            return null;
+        }
+        List<String> tags = new ArrayList<String>(names.length);
+        Object[] args = methodCall.getArguments();
+        for (int n = 0; n < names.length; n++) {
+            if (names[n] == null || args[n] == null) {
+                continue;
+            }
+            if (args[n] instanceof Collection) {
+                for (Object o : (Collection) args[n]) {
+                    addTag(tags, names[n], o);
+                }
+            } else if (args[n] instanceof Object[]) {
+                for (Object o : (Object[]) args[n]) {
+                    addTag(tags, names[n], o);
+                }
+            } else {
+                addTag(tags, names[n], args[n]);
+            }
+        }
+        return tags;
+    }
+
+    private static void addTag(List<String> tags, String name, Object value) {
+        if (value != null) {
+            tags.add(name.length() == 0 ? value.toString() : name + ":" + value);
+        }
+    }
+
+    /**
+     * @param method
+     * @return tag names by parameter, null for untagged parameters, computed
+     * once per method
+     */
+    private static String[] getTagNames(Method method) {
+        String[] names = tagNames.get(method);
+        if (names == null) {
+            Annotation[][] pas = method.getParameterAnnotations();
+            names = new String[pas.length];
+            boolean tagged = false;
+            for (int n = 0; n < pas.length; n++) {
+                for (Annotation a : pas[n]) {
+                    if (CacheTag.class.isAssignableFrom(a.annotationType())) {
+                        names[n] = ((CacheTag) a).value();
+                        tagged = true;
+                    }
+                }
+            }
+            if (!tagged) {
+                names = UNTAGGED;
+            }
+            tagNames.put(method, names);
+        }
+        return names;
+    }
+}
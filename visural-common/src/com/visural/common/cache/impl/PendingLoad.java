@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A load of a cache entry which is in progress. Used to coalesce concurrent
+ * misses for the same key, see {@link com.visural.common.cache.Cache#coalesceLoads()}.
+ * 
+ * The thread that created the load computes the result and completes or fails
+ * it, any other thread can wait for that outcome.
+ *
+ * @author Richard Nichols
+ */
+public class PendingLoad {
+
+    private final Object key;
+    private final Thread owner = Thread.currentThread();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Object result;
+    private volatile Throwable failure;
+
+    public PendingLoad(Object key) {
+        this.key = key;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return whether the calling thread is responsible for computing this load
+     */
+    public boolean isOwner() {
+        return owner == Thread.currentThread();
+    }
+
+    public void complete(Object result) {
+        this.result = result;
+        done.countDown();
+    }
+
+    public void fail(Throwable failure) {
+        this.failure = failure;
+        done.countDown();
+    }
+
+    /**
+     * Waits for the owner to complete the load.
+     * @return the loaded result
+     * @throws Throwable the exception the load failed with
+     */
+    public Object await() throws Throwable {
+        done.await();
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+}
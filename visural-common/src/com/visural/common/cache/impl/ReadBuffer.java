@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lossy, striped buffer of read events. Reader threads record into the
+ * stripe chosen by their thread id without taking any lock. When a stripe
+ * fills up further events are simply dropped, which is fine for the purpose
+ * of approximating recency or frequency.
+ * 
+ * Draining must be done by one thread at a time (i.e. under the owner's lock).
+ *
+ * @author Richard Nichols
+ * @param <E> 
+ */
+public class ReadBuffer<E> {
+
+    private static final int STRIPE_SIZE = 32;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+    private static final int DRAIN_THRESHOLD = STRIPE_SIZE / 2;
+
+    private final Stripe<E>[] stripes;
+    private final int mask;
+
+    public ReadBuffer() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors()) {
+            n <<= 1;
+        }
+        stripes = newStripes(n);
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe<E>();
+        }
+        mask = n - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> Stripe<E>[] newStripes(int n) {
+        return (Stripe<E>[]) new Stripe<?>[n];
+    }
+
+    /**
+     * Records an event.
+     * @param e
+     * @return true if the buffer should now be drained
+     */
+    public boolean offer(E e) {
+        return stripes[(int) Thread.currentThread().getId() & mask].offer(e);
+    }
+
+    /**
+     * Passes all buffered events to the given sink. Must not be called 
+     * concurrently.
+     * @param sink 
+     */
+    public void drainTo(Sink<E> sink) {
+        for (Stripe<E> s : stripes) {
+            s.drainTo(sink);
+        }
+    }
+
+    /**
+     * Receiver of drained events.
+     * @param <E> 
+     */
+    public interface Sink<E> {
+
+        void accept(E e);
+    }
+
+    private static class Stripe<E> {
+
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<E>(STRIPE_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter = 0;
+
+        boolean offer(E e) {
+            long w = writeCounter.get();
+            long pending = w - readCounter;
+            if (pending >= STRIPE_SIZE) {
+                return true;
+            }
+            if (writeCounter.compareAndSet(w, w + 1)) {
+                buffer.lazySet((int) (w & STRIPE_MASK), e);
+            }
+            return pending + 1 >= DRAIN_THRESHOLD;
+        }
+
+        void drainTo(Sink<E> sink) {
+            long r = readCounter;
+            long w = writeCounter.get();
+            for (; r < w; r++) {
+                int idx = (int) (r & STRIPE_MASK);
+                E e = buffer.get(idx);
+                if (e == null) {
+                    // slot claimed but not yet published, pick it up next time
+                    break;
+                }
+                buffer.lazySet(idx, null);
+                sink.accept(e);
+            }
+            readCounter = r;
+        }
+    }
+}
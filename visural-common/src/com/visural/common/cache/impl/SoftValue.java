@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+
+/**
+ * Soft reference to a cached result, which points back to its entry so that
+ * the entry can be removed from the cache once the result is collected.
+ *
+ * @author Richard Nichols
+ */
+public class SoftValue extends SoftReference<Object> {
+
+    private volatile CacheEntry entry = null;
+
+    public SoftValue(Object referent, ReferenceQueue<Object> queue) {
+        super(referent, queue);
+    }
+
+    public CacheEntry getEntry() {
+        return entry;
+    }
+
+    void setEntry(CacheEntry entry) {
+        this.entry = entry;
+    }
+}
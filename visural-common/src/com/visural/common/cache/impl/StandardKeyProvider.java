@@ -16,12 +16,9 @@
  */
 package com.visural.common.cache.impl;
 
-import com.visural.common.cache.KeyIgnore;
 import com.visural.common.cache.KeyProvider;
 import com.visural.common.cache.MethodCall;
 import com.visural.common.cache.WithCacheId;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Method;
 
 /**
  * Key provider that uses argument.toString() and detected {@link WithCacheId}
@@ -30,10 +27,12 @@ import java.lang.reflect.Method;
 public class StandardKeyProvider implements KeyProvider {
     
     public String getKey(MethodCall methodCall) {
+        boolean[] ignored = CompositeKeyProvider.getIgnoredParameters(methodCall.getMethod());
         StringBuilder key = new StringBuilder(/*methodCall.getMethod().getName()*/);
-        int n = 0;
-        for (Object o : methodCall.getArguments()) {
-            if (!hasIgnoreAnnotation(methodCall.getMethod(), n++)) {
+        Object[] args = methodCall.getArguments();
+        for (int n = 0; n < args.length; n++) {
+            if (!ignored[n]) {
+                Object o = args[n];
                 key.append("~~");
                 if (o != null && WithCacheId.class.isAssignableFrom(o.getClass())) {
                     WithCacheId wci = WithCacheId.class.cast(o);
@@ -45,14 +44,4 @@ public class StandardKeyProvider implements KeyProvider {
         }
         return key.toString();
     }
-
-    private boolean hasIgnoreAnnotation(Method method, int i) {
-        Annotation[] as = method.getParameterAnnotations()[i];
-        for (Annotation a : as) {
-            if (KeyIgnore.class.isAssignableFrom(a.annotationType())) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
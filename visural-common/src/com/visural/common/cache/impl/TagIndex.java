@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from tag to the keys of the entries tagged with it, across
+ * the method caches of a {@link CacheDataImpl}.
+ * 
+ * Keys are added when an entry is cached and removed with the entry, except 
+ * when it is moved to the disk store, so that a tag also invalidates entries 
+ * on disk. Each tag's keys are guarded by their own lock, and invalidating a
+ * tag takes time in proportion to the number of keys it has.
+ *
+ * @author Richard Nichols
+ */
+public class TagIndex {
+
+    private final ConcurrentHashMap<String, Set<TaggedKey>> index = new ConcurrentHashMap<String, Set<TaggedKey>>();
+
+    void add(String[] tags, MethodCache cache, Object key) {
+        TaggedKey tk = new TaggedKey(cache, key);
+        for (String tag : tags) {
+            while (true) {
+                Set<TaggedKey> keys = index.get(tag);
+                if (keys == null) {
+                    Set<TaggedKey> created = new HashSet<TaggedKey>();
+                    keys = index.putIfAbsent(tag, created);
+                    if (keys == null) {
+                        keys = created;
+                    }
+                }
+                synchronized (keys) {
+                    // the set is discarded once it is invalidated or empty
+                    if (index.get(tag) == keys) {
+                        keys.add(tk);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    void remove(String[] tags, MethodCache cache, Object key) {
+        TaggedKey tk = new TaggedKey(cache, key);
+        for (String tag : tags) {
+            Set<TaggedKey> keys = index.get(tag);
+            if (keys != null) {
+                synchronized (keys) {
+                    if (keys.remove(tk) && keys.isEmpty()) {
+                        index.remove(tag, keys);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all keys of the method cache, e.g. when it is cleared.
+     */
+    void remove(MethodCache cache) {
+        for (Map.Entry<String, Set<TaggedKey>> e : index.entrySet()) {
+            Set<TaggedKey> keys = e.getValue();
+            synchronized (keys) {
+                boolean removed = false;
+                for (TaggedKey tk : new ArrayList<TaggedKey>(keys)) {
+                    if (tk.cache == cache) {
+                        removed |= keys.remove(tk);
+                    }
+                }
+                if (removed && keys.isEmpty()) {
+                    index.remove(e.getKey(), keys);
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidates the entries with the tag.
+     * @param tag
+     * @return the number of keys which were tagged
+     */
+    int invalidate(String tag) {
+        Set<TaggedKey> keys = index.remove(tag);
+        if (keys == null) {
+            return 0;
+        }
+        List<TaggedKey> invalidate;
+        synchronized (keys) {
+            invalidate = new ArrayList<TaggedKey>(keys);
+        }
+        for (TaggedKey tk : invalidate) {
+            tk.cache.invalidateKey(tk.key);
+        }
+        return invalidate.size();
+    }
+
+    /**
+     * @return the number of tags which have keys
+     */
+    public int size() {
+        return index.size();
+    }
+
+    private static class TaggedKey {
+        private final MethodCache cache;
+        private final Object key;
+
+        TaggedKey(MethodCache cache, Object key) {
+            this.cache = cache;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(cache) * 31 + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TaggedKey)) {
+                return false;
+            }
+            TaggedKey other = (TaggedKey) obj;
+            return cache == other.cache && key.equals(other.key);
+        }
+    }
+}
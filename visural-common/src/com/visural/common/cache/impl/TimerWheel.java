@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical timing wheel which expires cache entries in the background, 
+ * shared by all {@link MethodCache}s.
+ * 
+ * A single daemon thread ticks every {@link #TICK_MILLIS}. Each tick it 
+ * updates a cached clock (see {@link #now()}), so the cache's hot paths don't
+ * need to call System.currentTimeMillis(), and then fires the timers which
+ * have come due.
+ * 
+ * There are 5 levels of 64 buckets each, the buckets of each level being 64
+ * times wider than those of the level below (16ms, ~1s, ~1min, ~70min, ~3 days).
+ * A timer is placed in the lowest level whose span covers its delay, and is
+ * cascaded down into a finer level as its bucket comes due, so scheduling, 
+ * cancelling and firing are all O(1) amortized.
+ * 
+ * Scheduling and cancellation may be called from any thread - they are queued
+ * and applied by the ticker thread, which is the only thread to touch the 
+ * buckets.
+ *
+ * @author Richard Nichols
+ */
+public class TimerWheel {
+
+    private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+    
+    public static final long TICK_MILLIS = 10;
+    
+    private static final int BUCKET_BITS = 6;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int[] SHIFT = {4, 10, 16, 22, 28};
+    
+    private static volatile TimerWheel shared = null;
+
+    private final Bucket[][] wheel = new Bucket[SHIFT.length][BUCKETS];
+    private final Queue<Timer> scheduled = new ConcurrentLinkedQueue<Timer>();
+    private final Queue<Timer> cancelled = new ConcurrentLinkedQueue<Timer>();
+    private volatile long now = System.currentTimeMillis();
+    private long lastAdvance = now;
+
+    /**
+     * @return the wheel shared by all caches, starting its ticker thread on 
+     * first use
+     */
+    public static TimerWheel getInstance() {
+        if (shared == null) {
+            synchronized (TimerWheel.class) {
+                if (shared == null) {
+                    TimerWheel w = new TimerWheel();
+                    w.start();
+                    shared = w;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return the current time in milliseconds, accurate to about {@link #TICK_MILLIS}
+     */
+    public static long now() {
+        return getInstance().now;
+    }
+
+    TimerWheel() {
+        for (Bucket[] level : wheel) {
+            for (int n = 0; n < BUCKETS; n++) {
+                level[n] = new Bucket();
+            }
+        }
+    }
+
+    private void start() {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache-timer-wheel");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ticker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    advance(System.currentTimeMillis());
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Error expiring cache entries", t);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules the timer to fire at its expiry time.
+     * @param timer 
+     */
+    public void schedule(Timer timer) {
+        scheduled.add(timer);
+    }
+
+    /**
+     * Cancels a scheduled timer. Has no effect if it has already fired.
+     * @param timer 
+     */
+    public void cancel(Timer timer) {
+        timer.cancelled = true;
+        cancelled.add(timer);
+    }
+
+    /**
+     * Moves the wheel forward to the given time, firing due timers. Only 
+     * called by the ticker thread (or tests).
+     * @param time 
+     */
+    void advance(long time) {
+        long previous = lastAdvance;
+        lastAdvance = time;
+        now = time;
+        Timer t;
+        while ((t = scheduled.poll()) != null) {
+            if (!t.cancelled) {
+                place(t);
+            }
+        }
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+        for (int level = 0; level < SHIFT.length; level++) {
+            long prevTicks = previous >>> SHIFT[level];
+            long ticks = time >>> SHIFT[level];
+            if (ticks <= prevTicks) {
+                break;
+            }
+            long count = Math.min(ticks - prevTicks, BUCKETS);
+            for (long n = 1; n <= count; n++) {
+                expire(wheel[level][(int) ((prevTicks + n) & (BUCKETS - 1))], time);
+            }
+        }
+    }
+
+    private void expire(Bucket bucket, long time) {
+        Timer t = bucket.head;
+        bucket.head = null;
+        while (t != null) {
+            Timer next = t.next;
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            if (t.cancelled) {
+                // already removed from the cache
+            } else if (t.getExpiry() <= time) {
+                try {
+                    t.expire();
+                } catch (Throwable e) {
+                    logger.log(Level.WARNING, "Error expiring cache entry", e);
+                }
+            } else {
+                // not due yet, cascade into a finer bucket
+                place(t);
+            }
+            t = next;
+        }
+    }
+
+    private void place(Timer t) {
+        long expiry = t.getExpiry();
+        long delay = Math.max(0, expiry - lastAdvance);
+        int level = 0;
+        while (level < SHIFT.length - 1 && delay >= (1L << (SHIFT[level] + BUCKET_BITS))) {
+            level++;
+        }
+        // anything due before the next tick of the level goes in the next bucket
+        long ticks = Math.max(expiry >>> SHIFT[level], (lastAdvance >>> SHIFT[level]) + 1);
+        wheel[level][(int) (ticks & (BUCKETS - 1))].add(t);
+    }
+
+    /**
+     * A timer which can be scheduled on the wheel.
+     */
+    public static abstract class Timer {
+
+        private volatile boolean cancelled = false;
+        // only accessed by the ticker thread
+        private Timer prev;
+        private Timer next;
+        private Bucket bucket;
+
+        /**
+         * @return time in milliseconds at which the timer should fire
+         */
+        public abstract long getExpiry();
+
+        /**
+         * Called on the ticker thread once the expiry time has passed.
+         */
+        public abstract void expire();
+    }
+
+    private static class Bucket {
+
+        private Timer head;
+
+        void add(Timer t) {
+            t.bucket = this;
+            t.prev = null;
+            t.next = head;
+            if (head != null) {
+                head.prev = t;
+            }
+            head = t;
+        }
+
+        void remove(Timer t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * W-TinyLFU eviction policy, for
+ * {@link com.visural.common.cache.EvictionStrategy#W_TINYLFU}.
+ * 
+ * New entries go into a small LRU window (1% of capacity). When the window
+ * overflows, its eldest entry becomes a candidate for the main space, which
+ * is a segmented LRU - a probation segment and a protected segment (80% of 
+ * the main space) for entries which have been hit while on probation. The
+ * candidate is only admitted if a {@link FrequencySketch} says it is more
+ * popular than the main space's victim, otherwise the candidate itself is
+ * evicted. This keeps one-hit wonders and scans from flushing the hot set.
+ *
+ * @author Richard Nichols
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<CacheEntry, CacheEntry> window = newSegment();
+    private final LinkedHashMap<CacheEntry, CacheEntry> probation = newSegment();
+    private final LinkedHashMap<CacheEntry, CacheEntry> protectedSegment = newSegment();
+    private final FrequencySketch sketch;
+    private final int windowMax;
+    private final int mainMax;
+    private final int protectedMax;
+
+    public TinyLfuEvictionPolicy(int maxEntries, CacheStats stats) {
+        windowMax = Math.max(1, maxEntries / 100);
+        mainMax = Math.max(0, maxEntries - windowMax);
+        protectedMax = (int) (mainMax * 0.8d);
+        sketch = new FrequencySketch(maxEntries, stats);
+    }
+
+    public void onAdd(CacheEntry entry) {
+        sketch.increment(entry.getKey().hashCode());
+        window.put(entry, entry);
+    }
+
+    public void onAccess(CacheEntry entry) {
+        if (window.get(entry) != null) {
+            sketch.increment(entry.getKey().hashCode());
+        } else if (probation.remove(entry) != null) {
+            sketch.increment(entry.getKey().hashCode());
+            protectedSegment.put(entry, entry);
+            if (protectedSegment.size() > protectedMax) {
+                CacheEntry demoted = removeEldest(protectedSegment);
+                probation.put(demoted, demoted);
+            }
+        } else if (protectedSegment.get(entry) != null) {
+            sketch.increment(entry.getKey().hashCode());
+        }
+    }
+
+    public void onUpdate(CacheEntry entry) {
+        // order doesn't depend on time cost
+    }
+
+    public void onRemove(CacheEntry entry) {
+        if (window.remove(entry) == null && probation.remove(entry) == null) {
+            protectedSegment.remove(entry);
+        }
+    }
+
+    public CacheEntry evict() {
+        while (window.size() > windowMax) {
+            CacheEntry candidate = removeEldest(window);
+            if (probation.size() + protectedSegment.size() < mainMax) {
+                probation.put(candidate, candidate);
+                continue;
+            }
+            LinkedHashMap<CacheEntry, CacheEntry> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+            CacheEntry victim = victimSegment.keySet().iterator().next();
+            if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.getKey().hashCode())) {
+                victimSegment.remove(victim);
+                probation.put(candidate, candidate);
+                return victim;
+            } else {
+                return candidate;
+            }
+        }
+        if (!probation.isEmpty()) {
+            return removeEldest(probation);
+        } else if (!protectedSegment.isEmpty()) {
+            return removeEldest(protectedSegment);
+        } else {
+            return removeEldest(window);
+        }
+    }
+
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    public boolean isAccessOrdered() {
+        return true;
+    }
+
+    private static LinkedHashMap<CacheEntry, CacheEntry> newSegment() {
+        return new LinkedHashMap<CacheEntry, CacheEntry>(16, 0.75f, true);
+    }
+
+    private static CacheEntry removeEldest(LinkedHashMap<CacheEntry, CacheEntry> segment) {
+        Iterator<CacheEntry> i = segment.keySet().iterator();
+        if (!i.hasNext()) {
+            return null;
+        }
+        CacheEntry eldest = i.next();
+        i.remove();
+        return eldest;
+    }
+}
@@ -21,6 +21,8 @@ import com.visural.common.IOUtil;
 import com.visural.common.StringUtil;
 import com.visural.common.cache.CacheModule;
 import com.visural.common.cache.impl.CacheStatsAggregated;
+import com.visural.common.cache.impl.HistogramSnapshot;
+import com.visural.common.cache.impl.HotKeys;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -181,6 +183,56 @@ public class CacheInspectorFilter implements Filter {
             return StringUtil.formatDecimal((double)stats.getCombinedStats().getAverageLoadTimeNanos()/1000000.0, 2);
         }
 
+        public String getLoadTimePercentilesMillis() {
+            HistogramSnapshot h = stats.getCombinedStats().getLoadTimeHistogram();
+            return "p50 "+formatMillis(h.getP50())+"ms, p99 "+formatMillis(h.getP99())+"ms, p99.9 "+formatMillis(h.getP999())+"ms";
+        }
+
+        public String getHitTimePercentilesMicros() {
+            HistogramSnapshot h = stats.getCombinedStats().getHitTimeHistogram();
+            return "hit p50 "+formatMicros(h.getP50())+"us, p99 "+formatMicros(h.getP99())+"us, p99.9 "+formatMicros(h.getP999())+"us";
+        }
+
+        /**
+         * @return the most requested keys with their counts, or null if hot 
+         * keys are not tracked
+         */
+        public String getHotKeysByRequests() {
+            HotKeys hk = stats.getHotKeys();
+            if (hk == null) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (HotKeys.HotKey k : hk.getByRequests()) {
+                sb.append(sb.length() > 0 ? ", " : "").append(k.getKey()).append(" (").append(k.getCount()).append(")");
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return the keys with the highest total load time in milliseconds, 
+         * or null if hot keys are not tracked
+         */
+        public String getHotKeysByLoadTime() {
+            HotKeys hk = stats.getHotKeys();
+            if (hk == null) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (HotKeys.HotKey k : hk.getByLoadTime()) {
+                sb.append(sb.length() > 0 ? ", " : "").append(k.getKey()).append(" (").append(formatMillis(k.getCount())).append("ms)");
+            }
+            return sb.toString();
+        }
+
+        private static String formatMillis(long nanos) {
+            return StringUtil.formatDecimal((double)nanos/1000000.0, 2);
+        }
+
+        private static String formatMicros(long nanos) {
+            return StringUtil.formatDecimal((double)nanos/1000.0, 2);
+        }
+
         public String getRowClass() {
             return rowClass;
         }
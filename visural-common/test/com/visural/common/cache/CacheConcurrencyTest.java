@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2010 Richard Nichols.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package com.visural.common.cache;
+
+import com.google.inject.Guice;
+import com.visural.common.cache.impl.CacheStatsSnapshot;
+import com.visural.common.cache.impl.HeavyHitters;
+import com.visural.common.cache.impl.HotKeys;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Multi-threaded stress tests for the cache storage engine.
+ * 
+ * @author Richard Nichols
+ */
+public class CacheConcurrencyTest extends TestCase {
+
+    private static final int THREADS = 8;
+    private static final int CALLS_PER_THREAD = 20000;
+    
+    private CacheService getCache() {
+        return Guice.createInjector(new CacheModule()).getInstance(CacheService.class);
+    }
+
+    public void testConcurrentLRU() throws Exception {
+        stress("stressLRU");
+    }
+
+    public void testConcurrentFIFO() throws Exception {
+        stress("stressFIFO");
+    }
+
+    public void testConcurrentLFU() throws Exception {
+        stress("stressLFU");
+    }
+
+    public void testConcurrentLFU_TIMECOST() throws Exception {
+        stress("stressLFU_TIMECOST");
+    }
+
+    public void testConcurrentW_TINYLFU() throws Exception {
+        stress("stressW_TINYLFU");
+    }
+
+    public void testConcurrentARC() throws Exception {
+        stress("stressARC");
+    }
+
+    public void testCoalescedLoads() throws Exception {
+        final CacheService cs = getCache();
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        runThreads(THREADS, new Runnable() {
+            public void run() {
+                results.add(cs.slowCoalesced(1));
+            }
+        });
+        assertEquals(1, cs.getConcurrentCounter());
+        assertEquals(THREADS, results.size());
+        for (Integer r : results) {
+            assertEquals(1, r.intValue());
+        }
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("slowCoalesced", int.class).toString()).getCombinedStats();
+        assertEquals(THREADS - 1, stats.getCoalescedWaitCount().get());
+    }
+
+    public void testCoalescedLoadsBackToBack() throws Exception {
+        final CacheService cs = getCache();
+        runThreads(THREADS, new Runnable() {
+            public void run() {
+                for (int n = 0; n < 5000; n++) {
+                    cs.fastCoalesced(n);
+                }
+            }
+        });
+        // callers which missed just before a load completed must not repeat it
+        assertEquals(5000, cs.getConcurrentCounter());
+    }
+
+    public void testCoalescedFailure() throws Exception {
+        final CacheService cs = getCache();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        runThreads(THREADS, new Runnable() {
+            public void run() {
+                try {
+                    cs.failingCoalesced(1);
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            }
+        });
+        assertEquals(1, cs.getConcurrentCounter());
+        assertEquals(THREADS, errors.size());
+        for (Throwable t : errors) {
+            assertEquals("failed 1", t.getMessage());
+        }
+        // failures are not cached
+        try {
+            cs.failingCoalesced(1);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(2, cs.getConcurrentCounter());
+    }
+
+    public void testConcurrentHotKeys() throws Exception {
+        final HeavyHitters hh = new HeavyHitters(1);
+        runThreads(THREADS, new Runnable() {
+            public void run() {
+                for (int n = 0; n < 1000; n++) {
+                    hh.recordRequest("hot");
+                    hh.recordRequest(Thread.currentThread().getName() + n);
+                }
+            }
+        });
+        // recorded in separate stripes, summed in the report
+        HotKeys.HotKey top = hh.report().getByRequests().get(0);
+        assertEquals("hot", top.getKey());
+        assertTrue(top.getCount() > 1000);
+    }
+
+    /**
+     * Hits don't take a shared lock, so throughput with a thread per core 
+     * should be well above that of a single thread. Only checked when there
+     * is more than one core.
+     */
+    public void testHitScaling() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (cores < 2) {
+            return;
+        }
+        final CacheService cs = getCache();
+        for (int n = 0; n < 32; n++) {
+            cs.stressLRU(n);
+        }
+        // warm up
+        countHits(cs, 1, 200);
+        int threads = Math.min(cores, 4);
+        long single = countHits(cs, 1, 500);
+        long multi = countHits(cs, threads, 500);
+        assertTrue(threads + " threads made " + multi + " hits, 1 thread made " + single,
+                multi >= single * threads / 2);
+    }
+
+    private long countHits(final CacheService cs, int threads, long millis) throws InterruptedException {
+        final AtomicLong hits = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        runThreads(threads, new Runnable() {
+            public void run() {
+                long count = 0;
+                while (System.currentTimeMillis() < end) {
+                    cs.stressLRU((int) (count++ & 31));
+                }
+                hits.addAndGet(count);
+            }
+        });
+        return hits.get();
+    }
+
+    private void stress(final String methodName) throws Exception {
+        final CacheService cs = getCache();
+        final Method m = CacheService.class.getMethod(methodName, int.class);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        runThreads(THREADS, new Runnable() {
+            public void run() {
+                Random r = new Random();
+                try {
+                    for (int n = 0; n < CALLS_PER_THREAD; n++) {
+                        // skewed so there is a hot set and plenty of evictions
+                        int arg = r.nextBoolean() ? r.nextInt(16) : r.nextInt(256);
+                        Object result = m.invoke(cs, arg);
+                        if (((Integer) result).intValue() != arg) {
+                            throw new IllegalStateException("Expected " + arg + " got " + result);
+                        }
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        });
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false).get(m.toString()).getCombinedStats();
+        assertTrue(stats.getEntries() <= 64);
+        assertTrue(stats.getEntries() > 0);
+        // miss count starts at 1 to avoid divide by zero, and misses which
+        // race with the creation of the method cache are not counted
+        long uncounted = THREADS * CALLS_PER_THREAD + 1 - stats.getRequestCount();
+        assertTrue(uncounted >= 0 && uncounted <= THREADS);
+        assertEquals(stats.getMissCount().get() - 1 + uncounted, stats.getLoadCount().get());
+        // concurrent loads of the same key replace rather than evict
+        assertTrue(stats.getEvictionCount().get() <= stats.getLoadCount().get() - stats.getEntries());
+        assertTrue(stats.getEvictionCount().get() > 0);
+    }
+
+    private void runThreads(int count, final Runnable r) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int n = 0; n < count; n++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    r.run();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+}
@@ -16,7 +16,20 @@
  */
 package com.visural.common.cache;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @version $Id: CacheService.java 31 2010-05-21 07:15:23Z tibes80@gmail.com $
@@ -36,6 +49,7 @@ public class CacheService implements Cacheable {
     }
     
     private int callCounter = 0;
+    private final AtomicInteger concurrentCallCounter = new AtomicInteger();
     
     @Cache(maxEntries=0)
     public void invalidMaxEntries() {
@@ -65,6 +79,115 @@ public class CacheService implements Cacheable {
         return callCounter++;
     }
     
+    @Cache(expireAfterAccess = 300)
+    public int idleExpiry(String argument) {
+        return callCounter++;
+    }
+
+    @Cache(timeToLive = 5000, refreshAfter = 300)
+    public int refreshAhead(String argument) {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException ex) {
+        }
+        return callCounter++;
+    }
+
+    /**
+     * Fails on every call after the first.
+     */
+    @Cache(timeToLive = 5000, refreshAfter = 300, cacheExceptions = IllegalStateException.class)
+    public int refreshFailing(String argument) {
+        if (callCounter++ > 0) {
+            throw new IllegalStateException("refresh failed");
+        }
+        return callCounter;
+    }
+
+    @Cache(timeToLive = 100, refreshAfter = 100)
+    public void invalidRefreshAfter() {
+    }
+
+    @Cache
+    public int keyedById(WithCacheId o, @KeyIgnore String ignored) {
+        return callCounter++;
+    }
+
+    @Cache
+    public int keyedByArray(int[] values) {
+        return callCounter++;
+    }
+
+    @Cache(maxWeight = 10, weigher = ArgumentWeigher.class)
+    public int weighted(int weight) {
+        return callCounter++;
+    }
+
+    public static class ArgumentWeigher implements Weigher {
+        public int weigh(MethodCall methodCall, Object result) {
+            return (Integer) methodCall.getArguments()[0];
+        }
+    }
+
+    @Cache(maxEntries = 2, offHeap = true)
+    public List<String> offHeap(String argument) {
+        return new ArrayList<String>(Arrays.asList(argument, Integer.toString(callCounter++)));
+    }
+
+    @Cache(maxEntries = 2, overflowToDisk = true)
+    public String overflowToDisk(String argument) {
+        return argument + callCounter++;
+    }
+
+    @Cache(offHeap = true, softValues = true)
+    public void invalidOffHeap() {
+    }
+
+    @Cache(timeToLive = 10000, cacheExceptions = IllegalArgumentException.class, 
+            exceptionTimeToLive = 100, nullTimeToLive = 100)
+    public String negative(String argument) {
+        callCounter++;
+        if ("missing".equals(argument)) {
+            throw new IllegalArgumentException("Not found");
+        } else if ("error".equals(argument)) {
+            throw new IllegalStateException("Error");
+        } else if ("null".equals(argument)) {
+            return null;
+        }
+        return argument;
+    }
+
+    @Cache
+    public Future<Integer> async(String argument, boolean fail) {
+        FutureTask<Integer> task = new FutureTask<Integer>(slowResult(fail));
+        new Thread(task).start();
+        return task;
+    }
+
+    @Cache
+    public ListenableFuture<Integer> asyncListenable(String argument, boolean fail) {
+        ListenableFutureTask<Integer> task = new ListenableFutureTask<Integer>(slowResult(fail));
+        new Thread(task).start();
+        return task;
+    }
+
+    @Cache
+    public Future<Integer> asyncNeverCompletes(String argument) {
+        return new FutureTask<Integer>(slowResult(false));
+    }
+
+    private Callable<Integer> slowResult(final boolean fail) {
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                Thread.sleep(100);
+                if (fail) {
+                    throw new IllegalStateException("Failed");
+                }
+                return callCounter++;
+            }
+        };
+    }
+
     @Cache(maxEntries = 5)
     public int randomServiceToCache() {
         return (int)(Math.random()*1000000d);
@@ -99,11 +222,96 @@ public class CacheService implements Cacheable {
         return Math.random();
     }
     
+    @Cache(maxEntries=5, evictionStrategy= EvictionStrategy.LFU_TIMECOST)
+    public double esLFU_TIMECOST_sleep(int arg, @KeyIgnore int sleepMillis) {
+        try {
+            Thread.sleep(sleepMillis);
+        } catch (InterruptedException ex) {
+        }
+        return Math.random();
+    }
+    
     @Cache(maxEntries=5, evictionStrategy= EvictionStrategy.LRU)
     public double esLRU(int arg) {
         return Math.random();
     }
 
+    @Cache(maxEntries=100, evictionStrategy= EvictionStrategy.W_TINYLFU)
+    public double esW_TINYLFU(int arg) {
+        return Math.random();
+    }
+
+    @Cache
+    public int customerOrders(@CacheTag("customer") int customer, int page) {
+        return callCounter++;
+    }
+
+    @Cache(maxEntries = 2, overflowToDisk = true)
+    public int customerProfile(@CacheTag("customer") int customer) {
+        return callCounter++;
+    }
+
+    @Cache
+    public int customerGroup(@CacheTag("customer") List<Integer> customers) {
+        return callCounter++;
+    }
+
+    @Cache(maxEntries=2000)
+    public byte[] sized(int length) {
+        return new byte[length];
+    }
+
+    private final List<List<Integer>> bulkCalls = new ArrayList<List<Integer>>();
+
+    /**
+     * Looks up users by id, except negative ids which don't exist.
+     */
+    @Cache
+    public Map<Integer, String> bulkUsers(@CacheBulk List<Integer> ids) {
+        bulkCalls.add(new ArrayList<Integer>(ids));
+        Map<Integer, String> result = new HashMap<Integer, String>();
+        for (Integer id : ids) {
+            if (id >= 0) {
+                result.put(id, "user" + id);
+            }
+        }
+        return result;
+    }
+
+    public List<List<Integer>> getBulkCalls() {
+        return bulkCalls;
+    }
+
+    @Cache
+    public Map<Integer, String> bulkSorted(@CacheBulk SortedSet<Integer> ids) {
+        bulkCalls.add(new ArrayList<Integer>(ids));
+        Map<Integer, String> result = new HashMap<Integer, String>();
+        for (Integer id : ids) {
+            result.put(id, "user" + id);
+        }
+        return result;
+    }
+
+    @Cache
+    public Map<Integer, String> bulkQueue(@CacheBulk Queue<Integer> ids) {
+        return new HashMap<Integer, String>();
+    }
+
+    @Cache(maxEntries=4, hotKeys=2)
+    public int hotKey(int arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries=100, evictionStrategy= EvictionStrategy.ARC)
+    public double esARC(int arg) {
+        return Math.random();
+    }
+
+    @Cache(maxEntries=64, evictionStrategy= EvictionStrategy.ARC)
+    public int stressARC(int arg) {
+        return arg;
+    }
+
     @Cache(maxEntries=100, softValues=true)
     public byte[] bigMemSoft(Integer n) {
         return new byte[50*1024*1024];
@@ -113,4 +321,57 @@ public class CacheService implements Cacheable {
     public byte[] bigMemHard(Integer n) {
         return new byte[50*1024*1024];
     }
+
+    @Cache(maxEntries=64, evictionStrategy= EvictionStrategy.LRU)
+    public int stressLRU(int arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries=64, evictionStrategy= EvictionStrategy.FIFO)
+    public int stressFIFO(int arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries=64, evictionStrategy= EvictionStrategy.LFU)
+    public int stressLFU(int arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries=64, evictionStrategy= EvictionStrategy.LFU_TIMECOST)
+    public int stressLFU_TIMECOST(int arg) {
+        return arg;
+    }
+
+    @Cache(maxEntries=64, evictionStrategy= EvictionStrategy.W_TINYLFU)
+    public int stressW_TINYLFU(int arg) {
+        return arg;
+    }
+
+    @Cache(coalesceLoads=true)
+    public int slowCoalesced(int arg) {
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException ex) {
+        }
+        return concurrentCallCounter.incrementAndGet();
+    }
+
+    @Cache(coalesceLoads=true, maxEntries=5000)
+    public int fastCoalesced(int arg) {
+        return concurrentCallCounter.incrementAndGet();
+    }
+
+    @Cache(coalesceLoads=true)
+    public int failingCoalesced(int arg) {
+        concurrentCallCounter.incrementAndGet();
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException ex) {
+        }
+        throw new IllegalStateException("failed "+arg);
+    }
+
+    public int getConcurrentCounter() {
+        return concurrentCallCounter.get();
+    }
 }
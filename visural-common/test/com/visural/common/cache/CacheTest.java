@@ -18,6 +18,40 @@ package com.visural.common.cache;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.visural.common.cache.impl.AsyncLoad;
+import com.visural.common.cache.impl.CacheDataImpl;
+import com.visural.common.cache.impl.CacheStatsAggregated;
+import com.visural.common.cache.impl.CacheStatsSnapshot;
+import com.visural.common.cache.impl.CompositeKeyProvider;
+import com.visural.common.cache.impl.DiskStore;
+import com.visural.common.cache.impl.HeavyHitters;
+import com.visural.common.cache.impl.HistogramSnapshot;
+import com.visural.common.cache.impl.HotKeys;
+import com.visural.common.cache.impl.InvalidationBus;
+import com.visural.common.cache.impl.LatencyHistogram;
+import com.visural.common.cache.impl.LoopbackTransport;
+import com.visural.common.cache.impl.MemoryEstimator;
+import com.visural.common.cache.impl.MethodCache;
+import com.visural.common.cache.impl.MethodRegistry;
+import com.visural.common.cache.impl.OffHeapStore;
+import com.visural.common.cache.impl.StandardKeyProvider;
+import com.visural.common.cache.impl.TagIndex;
+import com.visural.common.cache.impl.TimerWheel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import junit.framework.TestCase;
 
 /**
@@ -166,6 +200,589 @@ public class CacheTest extends TestCase {
         assertTrue(result + 1 == cs.longServiceToCache_3_100("foo"));
     }
     
+    public void testMaxWeight() throws Exception {
+        CacheService cs = getCache();
+        int result3 = cs.weighted(3);
+        assertTrue(result3 == cs.weighted(3));
+        int result4 = cs.weighted(4);
+        int result5 = cs.weighted(5);
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("weighted", int.class).toString()).getCombinedStats();
+        // the least recently used entry is evicted to get back under weight 10
+        assertEquals(9, stats.getWeight());
+        assertEquals(2, stats.getEntries());
+        assertTrue(result4 == cs.weighted(4));
+        assertTrue(result5 == cs.weighted(5));
+        assertTrue(result3 != cs.weighted(3));
+    }
+
+    public void testOffHeap() {
+        CacheService cs = getCache();
+        long before = OffHeapStore.getInstance().getUsedBytes();
+        List<String> result = cs.offHeap("a");
+        List<String> cached = cs.offHeap("a");
+        // deserialized copy of the same value
+        assertEquals(result, cached);
+        assertTrue(result != cached);
+        long chunk = OffHeapStore.getInstance().getUsedBytes() - before;
+        assertTrue(chunk > 0);
+        cs.offHeap("b");
+        cs.offHeap("c");
+        // "a" was evicted and its chunk released
+        assertEquals(before + 2 * chunk, OffHeapStore.getInstance().getUsedBytes());
+        assertFalse(result.equals(cs.offHeap("a")));
+    }
+
+    public void testOffHeapLimit() throws Exception {
+        OffHeapStore store = new OffHeapStore();
+        store.setMaxBytes(2 * OffHeapStore.SLAB_SIZE);
+        // larger than the limit
+        assertNull(store.put(new byte[3 * OffHeapStore.SLAB_SIZE], null));
+        List<OffHeapStore.Handle> first = new ArrayList<OffHeapStore.Handle>();
+        while (store.getReservedBytes() <= OffHeapStore.SLAB_SIZE) {
+            first.add(store.put(new byte[100000], null));
+        }
+        // the last went into a second slab, after which the store is full
+        OffHeapStore.Handle second = first.remove(first.size() - 1);
+        assertEquals(2 * OffHeapStore.SLAB_SIZE, store.getReservedBytes());
+        assertNull(store.put(new byte[OffHeapStore.SLAB_SIZE], null));
+        // the drained slab is released
+        for (OffHeapStore.Handle h : first) {
+            store.free(h);
+        }
+        assertEquals(OffHeapStore.SLAB_SIZE, store.getReservedBytes());
+        assertEquals(100000, ((byte[]) second.read()).length);
+        assertNotNull(store.put(new byte[100000], null));
+    }
+
+    public void testNegativeCaching() throws Exception {
+        CacheService cs = getCache();
+        for (String arg : new String[] {"foo", "null", "missing", "error"}) {
+            for (int n = 0; n < 2; n++) {
+                try {
+                    assertEquals("null".equals(arg) ? null : arg, cs.negative(arg));
+                    assertFalse("missing".equals(arg) || "error".equals(arg));
+                } catch (IllegalArgumentException e) {
+                    assertEquals("missing", arg);
+                } catch (IllegalStateException e) {
+                    assertEquals("error", arg);
+                }
+            }
+        }
+        // "error" is not a cached exception type
+        assertEquals(5, cs.getCounter());
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("negative", String.class).toString()).getCombinedStats();
+        assertEquals(3, stats.getHitCount().get());
+        assertEquals(2, stats.getNegativeHitCount().get());
+        // negative results expire sooner
+        Thread.sleep(500);
+        cs.negative("foo");
+        cs.negative("null");
+        try {
+            cs.negative("missing");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(7, cs.getCounter());
+    }
+
+    public void testInvalidateByTag() throws Exception {
+        CacheService cs = getCache();
+        cs.customerOrders(1, 0);
+        cs.customerOrders(1, 1);
+        cs.customerOrders(2, 0);
+        // 1 and 2 are evicted to disk, and still tagged
+        for (int n = 1; n <= 4; n++) {
+            cs.customerProfile(n);
+        }
+        cs.customerGroup(Arrays.asList(1, 3));
+        assertEquals(8, cs.getCounter());
+        
+        cs.__cacheData().invalidateByTag("customer:1");
+        cs.customerOrders(1, 0);
+        cs.customerOrders(1, 1);
+        cs.customerOrders(2, 0);
+        cs.customerProfile(1);
+        cs.customerProfile(2);
+        cs.customerGroup(Arrays.asList(1, 3));
+        assertEquals(12, cs.getCounter());
+
+        // entries removed otherwise are removed from the index
+        TagIndex index = ((CacheDataImpl) cs.__cacheData()).getTagIndex();
+        assertTrue(index.size() > 0);
+        for (String method : new String[] {"customerOrders", "customerProfile", "customerGroup"}) {
+            for (Method m : CacheService.class.getMethods()) {
+                if (m.getName().equals(method)) {
+                    cs.__cacheData().invalidateCache(m);
+                }
+            }
+        }
+        assertEquals(0, index.size());
+    }
+
+    public void testMethodRegistry() throws Exception {
+        MethodRegistry registry = MethodRegistry.getInstance();
+        Method m = CacheService.class.getMethod("customerOrders", int.class, int.class);
+        MethodRegistry.Slot slot = registry.resolve(m);
+        assertSame(slot, registry.resolve(m));
+        assertEquals(m.toString(), slot.getName());
+        assertFalse(slot.getSettings().singletonCache());
+        // equal copies of the method resolve to the same slot
+        for (int n = 0; n < 10; n++) {
+            assertSame(slot, registry.resolve(CacheService.class.getMethod("customerOrders", int.class, int.class)));
+        }
+        CacheService cs = getCache();
+        cs.customerOrders(1, 0);
+        cs.customerOrders(1, 0);
+        assertEquals(1, cs.getCounter());
+        cs.__cacheData().invalidateCache(new MethodCall(CacheService.class.getMethod("customerOrders", int.class, int.class), new Object[] {1, 0}));
+        cs.customerOrders(1, 0);
+        assertEquals(2, cs.getCounter());
+    }
+
+    public void testLatencyHistogram() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long n = 1; n <= 1000; n++) {
+            h.record(n * 1000);
+        }
+        HistogramSnapshot s = h.snapshot();
+        assertEquals(1000, s.getCount());
+        // within the bucket resolution
+        assertTrue(Math.abs(s.getP50() - 500000) <= 500000 / 8);
+        assertTrue(Math.abs(s.getP99() - 990000) <= 990000 / 8);
+        assertTrue(s.getP999() >= s.getP99());
+        HistogramSnapshot merged = s.plus(s);
+        assertEquals(2000, merged.getCount());
+        assertEquals(s.getP99(), merged.getP99());
+        assertEquals(0, merged.minus(s).minus(s).getCount());
+        
+        CacheService cs = getCache();
+        cs.negative("foo");
+        cs.negative("foo");
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("negative", String.class).toString()).getCombinedStats();
+        assertEquals(1, stats.getLoadTimeHistogram().getCount());
+        assertEquals(1, stats.getHitTimeHistogram().getCount());
+        assertEquals(2, stats.plus(stats).getLoadTimeHistogram().getCount());
+    }
+
+    public void testBulk() throws Exception {
+        CacheService cs = getCache();
+        Map<Integer, String> r = cs.bulkUsers(Arrays.asList(1, 2, 3));
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<Integer>(r.keySet()));
+        assertEquals("user2", r.get(2));
+        // only the misses are loaded, in one call
+        r = cs.bulkUsers(Arrays.asList(3, 4, 1, 5, -1));
+        assertEquals(Arrays.asList(3, 4, 1, 5), new ArrayList<Integer>(r.keySet()));
+        assertEquals(2, cs.getBulkCalls().size());
+        assertEquals(Arrays.asList(4, 5, -1), cs.getBulkCalls().get(1));
+        // missing ids are cached too
+        r = cs.bulkUsers(Arrays.asList(-1, 5, 2));
+        assertEquals(Arrays.asList(5, 2), new ArrayList<Integer>(r.keySet()));
+        assertEquals(2, cs.getBulkCalls().size());
+        assertTrue(cs.bulkUsers(new ArrayList<Integer>()).isEmpty());
+        assertEquals(2, cs.getBulkCalls().size());
+        
+        Method m = CacheService.class.getMethod("bulkUsers", List.class);
+        cs.__cacheData().invalidateCache(new MethodCall(m, new Object[] {Arrays.asList(2)}));
+        r = cs.bulkUsers(Arrays.asList(1, 2));
+        assertEquals("user2", r.get(2));
+        assertEquals(Arrays.asList(2), cs.getBulkCalls().get(2));
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false).get(m.toString()).getCombinedStats();
+        assertEquals(6, stats.getEntries());
+        assertEquals(7, stats.getLoadCount().get());
+
+        // the caller's collection is left alone, and may be unmodifiable
+        SortedSet<Integer> ids = Collections.unmodifiableSortedSet(new TreeSet<Integer>(Arrays.asList(3, 1)));
+        cs.bulkSorted(ids);
+        r = cs.bulkSorted(Collections.unmodifiableSortedSet(new TreeSet<Integer>(Arrays.asList(2, 3, 1))));
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<Integer>(r.keySet()));
+        assertEquals(Arrays.asList(2), cs.getBulkCalls().get(4));
+        assertEquals(Arrays.asList(1, 3), new ArrayList<Integer>(ids));
+        try {
+            // rejected on first use, whatever the argument
+            cs.bulkQueue(null);
+            fail("Should not allow a parameter which can't take a list or set");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("@CacheBulk"));
+        }
+    }
+
+    public void testHotKeys() throws Exception {
+        HeavyHitters hh = new HeavyHitters(2);
+        for (int n = 0; n < 1000; n++) {
+            hh.recordRequest("a");
+            if (n % 2 == 0) {
+                hh.recordRequest("b");
+            }
+            // a long tail of keys, more than the tracker has counters for
+            hh.recordRequest("tail" + n);
+        }
+        hh.recordLoad("slow", 1000000);
+        hh.recordLoad("fast", 10);
+        HotKeys report = hh.report();
+        assertEquals(2, report.getByRequests().size());
+        assertEquals("a", report.getByRequests().get(0).getKey());
+        assertEquals("b", report.getByRequests().get(1).getKey());
+        assertTrue(report.getByRequests().get(0).getCount() - report.getByRequests().get(0).getError() <= 1000);
+        assertTrue(report.getByRequests().get(0).getCount() >= 1000);
+        assertEquals("slow", report.getByLoadTime().get(0).getKey());
+        HotKeys merged = report.plus(report);
+        assertEquals(2 * report.getByRequests().get(0).getCount(), merged.getByRequests().get(0).getCount());
+
+        CacheService cs = getCache();
+        for (int n = 0; n < 50; n++) {
+            cs.hotKey(n % 2 == 0 ? 7 : n);
+        }
+        CacheStatsAggregated stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("hotKey", int.class).toString());
+        assertEquals(2, stats.getSettings().getHotKeys());
+        HotKeys.HotKey top = stats.getHotKeys().getByRequests().get(0);
+        assertTrue(top.getKey().contains("7"));
+        assertTrue(top.getCount() >= 25);
+        assertFalse(stats.getHotKeys().getByLoadTime().isEmpty());
+        // not tracked by default
+        cs.sized(1);
+        assertNull(cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("sized", int.class).toString()).getHotKeys());
+    }
+
+    public void testMemoryEstimate() throws Exception {
+        CacheService cs = getCache();
+        for (int n = 0; n < 1000; n++) {
+            cs.sized(n);
+        }
+        MethodCache mc = null;
+        for (MethodCache c : ((CacheDataImpl) cs.__cacheData()).getMethodCaches()) {
+            mc = c;
+        }
+        MemoryEstimator estimator = mc.getMemoryEstimator();
+        MemoryEstimator.Estimate exact = estimator.estimate(Integer.MAX_VALUE, 60000);
+        assertTrue(exact.isExact());
+        assertEquals(1000, exact.getEntries());
+        assertEquals(0, exact.getMargin());
+        assertTrue(exact.getBytes() > 1000 * 499);
+        MemoryEstimator.Estimate sampled = estimator.estimate(100, 60000);
+        assertEquals(100, sampled.getSampled());
+        assertTrue(sampled.getMargin() > 0);
+        assertTrue(Math.abs(sampled.getBytes() - exact.getBytes()) <= 4 * sampled.getMargin());
+        
+        // snapshots report the last background estimate
+        assertEquals(0, mc.getStatsSnapshot(true).getEstimatedMemoryUsageBytes());
+        for (int n = 0; n < 100 && estimator.getLastEstimate() == null; n++) {
+            Thread.sleep(50);
+        }
+        assertTrue(mc.getStatsSnapshot(true).getEstimatedMemoryUsageBytes() > 0);
+    }
+
+    public void testAsync() throws Exception {
+        CacheService cs = getCache();
+        Future<Integer> future = cs.async("a", false);
+        // callers share the in-flight future
+        assertSame(future, cs.async("a", false));
+        int result = future.get();
+        Thread.sleep(AsyncLoad.MAX_POLL_MILLIS * 3);
+        assertSame(future, cs.async("a", false));
+        assertEquals(result + 1, cs.getCounter());
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("async", String.class, boolean.class).toString()).getCombinedStats();
+        // time cost is measured to completion, not to the return of the future
+        assertTrue(stats.getTotalLoadTime().get() >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    public void testAsyncFailure() throws Exception {
+        CacheService cs = getCache();
+        Future<Integer> future = cs.async("a", true);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+        }
+        assertNotSame(future, cs.async("a", true));
+        future = cs.asyncListenable("a", true);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+        }
+        assertNotSame(future, cs.asyncListenable("a", true));
+    }
+
+    public void testAsyncNeverCompletes() throws Exception {
+        CacheService cs = getCache();
+        WeakReference<Future<Integer>> ref = new WeakReference<Future<Integer>>(cs.asyncNeverCompletes("a"));
+        cs.__cacheData().invalidateCache(MethodCall.get(CacheService.class, "asyncNeverCompletes", "a"));
+        // polling stops once the entry is gone, releasing the future
+        Thread.sleep(AsyncLoad.MAX_POLL_MILLIS * 3);
+        for (int n = 0; n < 50 && ref.get() != null; n++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+    }
+
+    public void testInstanceTracking() throws Exception {
+        CacheModule module = new CacheModule();
+        Injector injector = Guice.createInjector(module);
+        module.getInterceptor().setTrackReferences(true);
+        CacheService kept = injector.getInstance(CacheService.class);
+        for (int n = 0; n < 10; n++) {
+            kept.longServiceToCache_5("foo");
+            injector.getInstance(CacheService.class).longServiceToCache_5("foo");
+        }
+        List<Cacheable> instances = module.getInterceptor().getInstances();
+        assertTrue(instances.contains(kept));
+        assertTrue(instances.size() <= 11);
+        instances = null;
+        // collected instances are dropped
+        for (int n = 0; n < 50 && module.getInterceptor().getInstances().size() > 1; n++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, module.getInterceptor().getInstances().size());
+        assertTrue(module.getStatistics(false).containsKey(CacheService.class.getName()));
+    }
+
+    public void testExpiryTimersDontRetainCaches() throws Exception {
+        CacheService cs = getCache();
+        cs.negative("foo");
+        // the entry's timer is on the shared wheel for 10 seconds
+        WeakReference<MethodCache> ref = new WeakReference<MethodCache>(
+                ((CacheDataImpl) cs.__cacheData()).getMethodCaches().get(0));
+        cs = null;
+        for (int n = 0; n < 50 && ref.get() != null; n++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+    }
+
+    public void testSnapshot() throws Exception {
+        CacheModule module = new CacheModule();
+        CacheService cs = Guice.createInjector(module).getInstance(CacheService.class);
+        module.getInterceptor().setTrackReferences(true);
+        cs.longServiceToCache_5("foo");
+        int singleton = cs.longSingletonToCache_5("bar");
+        File file = File.createTempFile("cache", ".snapshot");
+        try {
+            // instance caches aren't saved, their results may depend on state
+            assertEquals(1, module.saveSnapshot(file));
+            // a "restarted" module comes up with the cached values
+            CacheModule restarted = new CacheModule();
+            CacheService cs2 = Guice.createInjector(restarted).getInstance(CacheService.class);
+            assertEquals(1, restarted.loadSnapshot(file));
+            assertEquals(singleton, cs2.longSingletonToCache_5("bar"));
+            assertEquals(0, cs2.getCounter());
+            cs2.longServiceToCache_5("foo");
+            assertEquals(1, cs2.getCounter());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testInvalidationBus() throws Exception {
+        CacheModule[] modules = new CacheModule[2];
+        CacheService[] nodes = new CacheService[2];
+        for (int n = 0; n < 2; n++) {
+            modules[n] = new CacheModule() {
+                @Override
+                protected InvalidationTransport createInvalidationTransport() {
+                    return new LoopbackTransport("testInvalidationBus");
+                }
+            };
+            nodes[n] = Guice.createInjector(modules[n]).getInstance(CacheService.class);
+        }
+        try {
+            int instance = nodes[1].longServiceToCache_5("foo");
+            int singleton = nodes[1].longSingletonToCache_5("foo");
+            nodes[0].__cacheData().invalidateCache(MethodCall.get(CacheService.class, "longServiceToCache_5", "foo"));
+            nodes[0].__cacheData().invalidateCache(CacheService.class.getMethod("longSingletonToCache_5", String.class));
+            Thread.sleep(InvalidationBus.FLUSH_MILLIS * 10);
+            assertTrue(instance != nodes[1].longServiceToCache_5("foo"));
+            assertTrue(singleton != nodes[1].longSingletonToCache_5("foo"));
+        } finally {
+            modules[0].shutdown();
+            modules[1].shutdown();
+        }
+    }
+
+    public void testInvalidationMessage() throws Exception {
+        CacheModule module = new CacheModule();
+        CacheService cs = Guice.createInjector(module).getInstance(CacheService.class);
+        int singleton = cs.longSingletonToCache_5("foo");
+        Method method = CacheService.class.getMethod("longSingletonToCache_5", String.class);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeLong(0);
+        out.writeInt(2);
+        // an invalidation which can't be applied doesn't stop the rest
+        out.writeUTF("com.example.NoSuchClass");
+        out.writeUTF("public int com.example.NoSuchClass.method()");
+        out.writeBoolean(false);
+        out.writeUTF(CacheService.class.getName());
+        out.writeUTF(method.toString());
+        out.writeBoolean(true);
+        out.writeUTF(new StandardKeyProvider().getKey(MethodCall.get(CacheService.class, "longSingletonToCache_5", "foo")));
+        out.close();
+        new InvalidationBus(module.getInterceptor(), null).receive(bos.toByteArray());
+        assertTrue(singleton != cs.longSingletonToCache_5("foo"));
+    }
+
+    public void testOverflowToDisk() throws Exception {
+        CacheService cs = getCache();
+        String a = cs.overflowToDisk("a");
+        cs.overflowToDisk("b");
+        String c = cs.overflowToDisk("c");
+        int prev = cs.getCounter();
+        // "a" was evicted to disk, and is read back rather than recomputed
+        assertEquals(a, cs.overflowToDisk("a"));
+        assertEquals(prev, cs.getCounter());
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("overflowToDisk", String.class).toString()).getCombinedStats();
+        assertEquals(1, stats.getDiskHitCount().get());
+        assertTrue(stats.getDiskSpillCount().get() >= 2);
+        // "b" is now on disk, invalidation must remove it there too
+        cs.__cacheData().invalidateCache(MethodCall.get(cs.getClass(), "overflowToDisk", "b"));
+        cs.overflowToDisk("b");
+        assertEquals(prev + 1, cs.getCounter());
+        assertEquals(c, cs.overflowToDisk("c"));
+    }
+
+    public void testDiskStoreExpiry() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "disk-store-test-"+System.nanoTime());
+        DiskStore store = new DiskStore(dir, "expiry", DiskStore.SEGMENT_SIZE, getClass().getClassLoader());
+        try {
+            store.put("live", TimerWheel.now(), 0, 0, "value");
+            int n = 0;
+            while (store.put("expired"+n, TimerWheel.now(), 500, 0, new byte[512 * 1024])) {
+                n++;
+            }
+            assertTrue(n > 0);
+            Thread.sleep(1500);
+            // the file is full of expired values, which are purged and not copied
+            assertTrue(store.put("more", TimerWheel.now(), 0, 0, new byte[512 * 1024]));
+            assertEquals(2, store.size());
+            assertFalse(store.contains("expired0"));
+            assertEquals("value", store.remove("live").getValue());
+            assertEquals(1, dir.list().length);
+        } finally {
+            store.clear();
+        }
+        assertEquals(0, dir.list().length);
+        dir.delete();
+    }
+
+    public void testInvalidOffHeap() {
+        CacheService cs = getCache();
+        try {
+            cs.invalidOffHeap();
+            fail("Should not allow offHeap with softValues");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testCompositeKeys() throws Exception {
+        CacheService cs = Guice.createInjector(new CacheModule() {
+            @Override
+            protected Class<? extends KeyProvider> getKeyProvider() {
+                return CompositeKeyProvider.class;
+            }
+        }).getInstance(CacheService.class);
+        int result = cs.keyedById(new CacheId("a"), "x");
+        assertTrue(result == cs.keyedById(new CacheId("a"), "y"));
+        assertTrue(result != cs.keyedById(new CacheId("b"), "x"));
+        int[] arg = new int[] {1, 2};
+        result = cs.keyedByArray(arg);
+        // the cached key is a copy, unaffected by changes to the argument
+        arg[0] = 2;
+        arg[1] = 1;
+        assertTrue(result == cs.keyedByArray(new int[] {1, 2}));
+        assertTrue(result != cs.keyedByArray(new int[] {2, 1}));
+        
+        CompositeKeyProvider kp = new CompositeKeyProvider();
+        Method m = CacheService.class.getMethod("keyedById", WithCacheId.class, String.class);
+        assertEquals(kp.getKeyObject(new MethodCall(m, new Object[] {new CacheId("a"), "x"})), 
+                kp.getKeyObject(new MethodCall(m, new Object[] {new CacheId("a"), "y"})));
+        assertEquals("~~a", kp.getKey(new MethodCall(m, new Object[] {new CacheId("a"), "x"})));
+    }
+
+    public void testDefaultKeyProvider() {
+        assertTrue(getInjector().getInstance(KeyProvider.class) instanceof StandardKeyProvider);
+    }
+
+    private static class CacheId implements WithCacheId {
+        private final String id;
+
+        CacheId(String id) {
+            this.id = id;
+        }
+
+        public String __cacheId() {
+            return id;
+        }
+    }
+    
+    public void testBackgroundExpiry() throws Exception {
+        CacheService cs = getCache();
+        cs.longServiceToCache_3_100("foo");
+        cs.longServiceToCache_3_100("bar");
+        String method = CacheService.class.getMethod("longServiceToCache_3_100", String.class).toString();
+        assertEquals(2, cs.__cacheData().getStatistics(false).get(method).getCombinedStats().getEntries());
+        Thread.sleep(1000);
+        // removed by the timer wheel without being read again
+        assertEquals(0, cs.__cacheData().getStatistics(false).get(method).getCombinedStats().getEntries());
+    }
+    
+    public void testExpireAfterAccess() throws Exception {
+        CacheService cs = getCache();
+        int hot = cs.idleExpiry("hot");
+        int cold = cs.idleExpiry("cold");
+        String method = CacheService.class.getMethod("idleExpiry", String.class).toString();
+        for (int n = 0; n < 9; n++) {
+            Thread.sleep(100);
+            assertEquals(hot, cs.idleExpiry("hot"));
+        }
+        // the idle entry was removed by the timer wheel, the used one lives on
+        assertEquals(1, cs.__cacheData().getStatistics(false).get(method).getCombinedStats().getEntries());
+        Thread.sleep(700);
+        assertEquals(0, cs.__cacheData().getStatistics(false).get(method).getCombinedStats().getEntries());
+        assertTrue(cold != cs.idleExpiry("cold"));
+    }
+    
+    public void testRefreshAhead() throws Exception {
+        CacheService cs = getCache();
+        int result = cs.refreshAhead("foo");
+        assertTrue(result == cs.refreshAhead("foo"));
+        Thread.sleep(400);
+        // stale value is returned immediately while a refresh is scheduled
+        assertTrue(result == cs.refreshAhead("foo"));
+        Thread.sleep(150);
+        assertTrue(result + 1 == cs.refreshAhead("foo"));
+        // initial load plus exactly one background refresh
+        assertEquals(result + 2, cs.getCounter());
+    }
+
+    public void testRefreshAheadFailure() throws Exception {
+        CacheService cs = getCache();
+        int result = cs.refreshFailing("foo");
+        Thread.sleep(400);
+        assertEquals(result, cs.refreshFailing("foo"));
+        Thread.sleep(150);
+        // the refresh failed with a cached exception type, the value is kept
+        assertEquals(2, cs.getCounter());
+        assertEquals(result, cs.refreshFailing("foo"));
+    }
+
+    public void testInvalidRefreshAfter() {
+        CacheService cs = getCache();
+        try {
+            cs.invalidRefreshAfter();
+            fail("Should not allow refreshAfter >= timeToLive");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+    
     public void testFIFO() {
         CacheService cs = getCache();
         double result = cs.esFIFO(0);        
@@ -188,6 +805,89 @@ public class CacheTest extends TestCase {
         assertTrue(result1 != cs.esLFU(1));
     }
 
+    public void testLFU_TIMECOST() {
+        CacheService cs = getCache();
+        double expensive = cs.esLFU_TIMECOST_sleep(0, 100);
+        for (int n = 1; n < 10; n++) {
+            cs.esLFU_TIMECOST_sleep(n, 0);
+            cs.esLFU_TIMECOST_sleep(n, 0);
+        }
+        // used less, but far more costly to compute than the others
+        assertTrue(expensive == cs.esLFU_TIMECOST_sleep(0, 0));
+    }
+
+    public void testLFUAdmitsNewKeys() {
+        CacheService cs = getCache();
+        for (int n = 0; n < 5; n++) {
+            cs.esLFU(n);
+            cs.esLFU_TIMECOST(n);
+        }
+        // every entry is now used more than a new one
+        for (int n = 0; n < 5; n++) {
+            cs.esLFU(n);
+            cs.esLFU_TIMECOST(n);
+        }
+        for (int n = 5; n < 10; n++) {
+            assertTrue(cs.esLFU(n) == cs.esLFU(n));
+            assertTrue(cs.esLFU_TIMECOST(n) == cs.esLFU_TIMECOST(n));
+        }
+    }
+
+    public void testW_TINYLFU() throws Exception {
+        CacheService cs = getCache();
+        double[] hot = new double[10];
+        for (int n = 0; n < 5; n++) {
+            for (int h = 0; h < hot.length; h++) {
+                hot[h] = cs.esW_TINYLFU(h);
+            }
+        }
+        // a scan of one-off keys should not flush the hot set, even though
+        // each hot key is only requested once every 100 scanned keys (which
+        // would evict it under LRU)
+        for (int n = 1000; n < 3000; n++) {
+            cs.esW_TINYLFU(n);
+            if (n % 10 == 0) {
+                int h = (n / 10) % hot.length;
+                assertTrue(hot[h] == cs.esW_TINYLFU(h));
+            }
+        }
+        for (int h = 0; h < hot.length; h++) {
+            assertTrue(hot[h] == cs.esW_TINYLFU(h));
+        }
+        CacheStatsSnapshot stats = cs.__cacheData().getStatistics(false)
+                .get(CacheService.class.getMethod("esW_TINYLFU", int.class).toString()).getCombinedStats();
+        assertTrue(stats.getSketchSampleCount().get() > 0);
+        assertTrue(stats.getSketchAgingCount().get() > 0);
+    }
+
+    public void testEvictionARC() throws Exception {
+        CacheService cs = getCache();
+        String method = CacheService.class.getMethod("esARC", int.class).toString();
+        // frequently used keys survive a scan
+        double[] hot = new double[20];
+        for (int n = 0; n < 3; n++) {
+            for (int h = 0; h < hot.length; h++) {
+                hot[h] = cs.esARC(h);
+            }
+        }
+        for (int n = 1000; n < 1300; n++) {
+            cs.esARC(n);
+        }
+        for (int h = 0; h < hot.length; h++) {
+            assertTrue(hot[h] == cs.esARC(h));
+        }
+        assertEquals(0, cs.__cacheData().getStatistics(false).get(method).getCombinedStats().getArcTarget());
+        // keys recently evicted from the recency list grow its target
+        for (int r = 0; r < 3; r++) {
+            for (int n = 0; n < 90; n++) {
+                cs.esARC(2000 + n);
+            }
+        }
+        int target = cs.__cacheData().getStatistics(false).get(method).getCombinedStats().getArcTarget();
+        assertTrue(target > 0);
+        assertTrue(target <= 100);
+    }
+
     public void testInvalidateSingleton() {
         CacheService cs = getCache();
         cs.longSingletonToCache_5("static");
@@ -197,7 +897,7 @@ public class CacheTest extends TestCase {
         assertTrue(prev + 1 == cs.getCounter());
     }
     
-    public void testSoftRef() {
+    public void testSoftRef() throws Exception {
         CacheService cs = getCache();
         try {
             for (int n = 0; n < 10; n++) {
@@ -212,5 +912,18 @@ public class CacheTest extends TestCase {
         for (int n = 0; n < 10; n++) {
             cs.bigMemSoft(n);
         }
+        // collected values are purged on later writes, once enqueued
+        String method = CacheService.class.getMethod("bigMemSoft", Integer.class).toString();
+        CacheStatsSnapshot stats = null;
+        for (int n = 10; n < 60; n++) {
+            stats = cs.__cacheData().getStatistics(false).get(method).getCombinedStats();
+            if (stats.getCollectedCount().get() > 0) {
+                break;
+            }
+            Thread.sleep(20);
+            cs.bigMemSoft(n);
+        }
+        assertTrue(stats.getCollectedCount().get() > 0);
+        assertEquals(stats.getLoadCount().get() - stats.getCollectedCount().get(), stats.getEntries());
     }
 }